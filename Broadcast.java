@@ -1,38 +1,57 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 
 public final class Broadcast {
 
-    private final Map<String, List<String>> responses;
+    // Distinct response lines in the order they were added, each with the
+    // users it goes to
+    private final List<Delivery> deliveries;
+    private final boolean error;
 
    
     private Broadcast() {
-        responses = new TreeMap<>();
+        this(false);
+    }
+
+    private Broadcast(boolean error) {
+        deliveries = new ArrayList<>(2);
+        this.error = error;
     }
 
     
     private void addResponse(String nick, String response) {
-        if (!responses.containsKey(nick)) {
-            responses.put(nick, new LinkedList<>());
-        }
-        List<String> userResponses = responses.get(nick);
-        if (!userResponses.contains(response)) {
-            userResponses.add(response);
+        addResponse(Collections.singleton(nick), response, encode(response));
+    }
+
+    /**
+     * Sends a response to a set of users. A line that is already part of this
+     * broadcast keeps its place and just gains the new recipients, so nobody
+     * gets the same line twice.
+     */
+    private void addResponse(Collection<String> recipients, String response, ByteBuffer bytes) {
+        for (Delivery delivery : deliveries) {
+            if (delivery.line.equals(response)) {
+                delivery.addRecipients(recipients);
+                return;
+            }
         }
+        deliveries.add(new Delivery(response, bytes, recipients));
     }
 
    
     public static Broadcast okay(Command command, Collection<String> recipients) {
         Broadcast broadcast = new Broadcast();
-        for (String recipient : recipients) {
-            broadcast.addResponse(recipient, command.toString());
-        }
 
         // Need to send response to user ID associated with *new* nick
         if (command instanceof NicknameCommand nickCommand) {
-            broadcast.responses.remove(command.getSender());
-            broadcast.addResponse(nickCommand.getNewNickname(), command.toString());
+            Set<String> renamed = new LinkedHashSet<>(recipients);
+            renamed.remove(command.getSender());
+            renamed.add(nickCommand.getNewNickname());
+            recipients = renamed;
         }
+        broadcast.addResponse(recipients, command.toString(), command.getEncoded());
         return broadcast;
     }
 
@@ -41,10 +60,9 @@ public final class Broadcast {
         if (error == ServerResponse.OKAY) {
             throw new IllegalArgumentException("Invalid error type");
         }
-        Broadcast broadcast = new Broadcast();
+        Broadcast broadcast = new Broadcast(true);
         String recipient = command.getSender();
-        int errorCode = error.getCode();
-        String response = String.format(":%s ERROR %d", recipient, errorCode);
+        String response = ":" + recipient + " ERROR " + error.getCode();
         broadcast.addResponse(recipient, response);
         return broadcast;
     }
@@ -52,7 +70,7 @@ public final class Broadcast {
  
     public static Broadcast connected(String recipient) {
         Broadcast broadcast = new Broadcast();
-        String response = String.format(":%s CONNECT", recipient);
+        String response = ":" + recipient + " CONNECT";
         broadcast.addResponse(recipient, response);
         return broadcast;
     }
@@ -63,15 +81,27 @@ public final class Broadcast {
             throw new IllegalArgumentException("Disconnected user in broadcast");
         }
         Broadcast broadcast = new Broadcast();
-        String response = String.format(":%s QUIT", user);
-        for (String recipient : recipients) {
-            broadcast.addResponse(recipient, response);
+        String response = ":" + user + " QUIT";
+        if (!recipients.isEmpty()) {
+            broadcast.addResponse(recipients, response, encode(response));
         }
         return broadcast;
     }
 
     
     public static Broadcast names(Command command, Collection<String> recipients, String owner) {
+        String namesPayload = createNamesPayload(owner, recipients);
+        return names(command, recipients, namesPayload, namesPayload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Like {@link #names(Command, Collection, String)}, with a NAMES payload
+     * (and its UTF-8 encoding) the caller has already built.
+     */
+    static Broadcast names(
+            Command command, Collection<String> recipients,
+            String namesPayload, byte[] encodedPayload
+    ) {
         // Relay JOIN or INVITE normally
         Broadcast broadcast = Broadcast.okay(command, recipients);
 
@@ -86,40 +116,118 @@ public final class Broadcast {
         } else {
             throw new IllegalArgumentException("Invalid command type");
         }
-        String namesPayload = createNamesPayload(owner, recipients);
-        String namesResponse = String
-                .format(":%s NAMES %s :%s", userToAdd, channelName, namesPayload);
-        broadcast.addResponse(userToAdd, namesResponse);
+        String prefix = ":" + userToAdd + " NAMES " + channelName + " :";
+        byte[] encodedPrefix = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[encodedPrefix.length + encodedPayload.length + 1];
+        System.arraycopy(encodedPrefix, 0, line, 0, encodedPrefix.length);
+        System.arraycopy(encodedPayload, 0, line, encodedPrefix.length, encodedPayload.length);
+        line[line.length - 1] = '\n';
+        broadcast.addResponse(Collections.singleton(userToAdd), prefix + namesPayload, ByteBuffer.wrap(line));
         return broadcast;
     }
 
-    
+    /**
+     * Sends a user a channel's recent lines after the rest of this
+     * broadcast, as one block. The block is newline-terminated lines and is
+     * not deduplicated against the other responses, as a channel's history
+     * may repeat a line on purpose.
+     */
+    void addHistory(String recipient, byte[] lines) {
+        String text = new String(lines, 0, lines.length - 1, StandardCharsets.UTF_8);
+        deliveries.add(new Delivery(text, ByteBuffer.wrap(lines), Collections.singleton(recipient)));
+    }
+
+
     public Map<Integer, List<String>> getResponses(ServerModel model) {
         Map<Integer, List<String>> userIdResponses = new TreeMap<>();
-        for (Map.Entry<String, List<String>> entry : responses.entrySet()) {
+        for (Map.Entry<String, List<String>> entry : getResponsesByNickname().entrySet()) {
             int userId = model.getUserId(entry.getKey());
             userIdResponses.put(userId, entry.getValue());
         }
         return userIdResponses;
     }
 
-    
-    private static String createNamesPayload(String owner, Collection<String> nicks) {
+    /**
+     * The distinct lines of this broadcast, in order, each with its
+     * recipients. This is what the server sends from; the per-user view is
+     * only built for {@link #getResponses} and comparisons.
+     */
+    List<Delivery> getDeliveries() {
+        return deliveries;
+    }
+
+    // Each recipient's lines in the order they receive them
+    private Map<String, List<String>> getResponsesByNickname() {
+        Map<String, List<String>> responses = new TreeMap<>();
+        for (Delivery delivery : deliveries) {
+            for (String recipient : delivery.recipients) {
+                responses.computeIfAbsent(recipient, nick -> new ArrayList<>()).add(delivery.line);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Returns true if this broadcast reports that a command was rejected,
+     * leaving the server state unchanged.
+     */
+    public boolean isError() {
+        return error;
+    }
+
+    /**
+     * Combines several broadcasts into one, dropping any response a
+     * recipient would otherwise receive more than once. Null entries are
+     * skipped.
+     */
+    static Broadcast merge(Broadcast[] parts) {
+        Broadcast merged = new Broadcast();
+        for (Broadcast part : parts) {
+            if (part == null) {
+                continue;
+            }
+            for (Delivery delivery : part.deliveries) {
+                merged.addResponse(delivery.recipients, delivery.line, delivery.encoded);
+            }
+        }
+        return merged;
+    }
+
+    static ByteBuffer encode(String response) {
+        byte[] line = response.getBytes(StandardCharsets.UTF_8);
+        byte[] terminated = Arrays.copyOf(line, line.length + 1);
+        terminated[line.length] = '\n';
+        return ByteBuffer.wrap(terminated);
+    }
+
+    /**
+     * Builds the NAMES list: the nicknames in order, space-separated, with
+     * the owner's marked by '@'.
+     */
+    static String createNamesPayload(String owner, Collection<String> nicks) {
         if (owner == null || nicks == null || !nicks.contains(owner)) {
             throw new IllegalArgumentException();
         }
 
-        List<String> nicksList = new LinkedList<>(nicks);
-        Collections.sort(nicksList);
+        Collection<String> sorted;
+        if (nicks instanceof SortedSet<String> set && set.comparator() == null) {
+            sorted = nicks;
+        } else {
+            List<String> nicksList = new ArrayList<>(nicks);
+            Collections.sort(nicksList);
+            sorted = nicksList;
+        }
         StringBuilder payload = new StringBuilder();
-        for (String nick : nicksList) {
+        for (String nick : sorted) {
+            if (payload.length() > 0) {
+                payload.append(' ');
+            }
             if (nick.equals(owner)) {
                 payload.append('@');
             }
             payload.append(nick);
-            payload.append(' ');
         }
-        return payload.toString().trim();
+        return payload.toString();
     }
 
    
@@ -131,17 +239,65 @@ public final class Broadcast {
         if (o == null || o.getClass() != Broadcast.class) {
             return false;
         }
-        return this.responses.equals(((Broadcast) o).responses);
+        return getResponsesByNickname().equals(((Broadcast) o).getResponsesByNickname());
     }
 
     @Override
     public int hashCode() {
-        return responses.hashCode();
+        return getResponsesByNickname().hashCode();
     }
 
     @Override
     public String toString() {
-        return responses.toString();
+        return getResponsesByNickname().toString();
+    }
+
+
+    /**
+     * One response line and everyone it goes to.
+     */
+    static final class Delivery {
+        private final String line;
+        private final ByteBuffer encoded;
+        private Set<String> recipients;
+        // Whether recipients is our own copy rather than the caller's set
+        private boolean copied;
+
+        private Delivery(String line, ByteBuffer encoded, Collection<String> recipients) {
+            this.line = line;
+            this.encoded = encoded;
+            if (recipients instanceof Set<String> set) {
+                this.recipients = set;
+                this.copied = false;
+            } else {
+                this.recipients = new LinkedHashSet<>(recipients);
+                this.copied = true;
+            }
+        }
+
+        private void addRecipients(Collection<String> more) {
+            if (!copied) {
+                recipients = new LinkedHashSet<>(recipients);
+                copied = true;
+            }
+            recipients.addAll(more);
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        /**
+         * The encoded line, terminator included. The buffer is shared between
+         * recipients and must only be read through a duplicate.
+         */
+        public ByteBuffer getEncoded() {
+            return encoded;
+        }
+
+        public Set<String> getRecipients() {
+            return Collections.unmodifiableSet(recipients);
+        }
     }
 
 }
@@ -0,0 +1,76 @@
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+
+
+/**
+ * An immutable view of one channel as of a published {@link ModelSnapshot}.
+ *
+ * Members are held as user IDs in a private copy of the live channel's
+ * set. The model only builds a new view for channels changed since the
+ * last snapshot, so the copy is one array clone per changed channel per
+ * batch. Nicknames are resolved through the snapshot the channel belongs
+ * to.
+ */
+public final class ChannelSnapshot {
+
+    private final String name;
+    private final int ownerId;
+    private final boolean inviteOnly;
+    private final IntHashSet members;
+
+    /**
+     * @param members the channel's current members, which are copied
+     */
+    ChannelSnapshot(String name, int ownerId, boolean inviteOnly, IntHashSet members) {
+        if (name == null || members == null) {
+            throw new NullPointerException();
+        }
+        this.name = name;
+        this.ownerId = ownerId;
+        this.inviteOnly = inviteOnly;
+        this.members = members.copy();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getOwnerId() {
+        return ownerId;
+    }
+
+    public boolean isInviteOnly() {
+        return inviteOnly;
+    }
+
+    public boolean containsUser(int userId) {
+        return members.contains(userId);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * A read-only view of the members' IDs, in no particular order.
+     */
+    public Collection<Integer> getUserIds() {
+        return new AbstractCollection<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return members.iterator();
+            }
+
+            @Override
+            public int size() {
+                return members.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Integer userId && members.contains(userId);
+            }
+        };
+    }
+}
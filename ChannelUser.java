@@ -0,0 +1,199 @@
+import java.nio.charset.StandardCharsets;
+
+public class ChannelUser {
+
+    private IntHashSet users; // user IDs; nicknames are resolved by the model
+    private int owner;
+    private boolean privacy; // 1 if private, 0 if public
+    private String name;
+    // NAMES payload for the current members, built on demand and then kept
+    // up to date by splicing names in and out; dropped when the owner changes
+    private String namesPayload;
+    private byte[] encodedNamesPayload;
+
+    public ChannelUser(int owner, boolean privacy, String name) {
+        this.users = new IntHashSet();
+        this.owner = owner;
+        this.privacy = privacy;
+        this.name = name;
+        users.add(owner);
+    }
+
+    public IntHashSet getUsers() {
+        return users;
+    }
+
+    public int getOwner() {
+        return owner;
+    }
+
+    public boolean containsUser(int userId) {
+        return users.contains(userId);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean getPrivacy() {
+        return privacy;
+    }
+
+    public void removeUser(int userId, String nickname) {
+        if (users.remove(userId)) {
+            removeName(nickname);
+        }
+    }
+
+    public void addUser(int userId, String nickname) {
+        if (users.add(userId)) {
+            insertName(nickname, false);
+        }
+    }
+
+    /**
+     * Updates the cached NAMES payload after a member changed nickname.
+     */
+    public void renameUser(String oldNickname, String newNickname) {
+        if (namesPayload != null) {
+            insertName(newNickname, removeName(oldNickname));
+        }
+    }
+
+    public void setOwner(int userId) {
+        if (owner != userId) {
+            owner = userId;
+            invalidateNames();
+        }
+    }
+
+    /**
+     * The cached NAMES payload, or null if it has to be rebuilt.
+     */
+    public String getNamesPayload() {
+        return namesPayload;
+    }
+
+    /**
+     * The cached NAMES payload in UTF-8, or null if it has to be rebuilt.
+     */
+    public byte[] getEncodedNamesPayload() {
+        return encodedNamesPayload;
+    }
+
+    public void setNamesPayload(String payload) {
+        namesPayload = payload;
+        encodedNamesPayload = payload.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drops the cached NAMES payload, e.g. after members were swapped.
+     */
+    public void invalidateNames() {
+        namesPayload = null;
+        encodedNamesPayload = null;
+    }
+
+    // Splices a name into the cached payload at its place in the sort order,
+    // with one copy of the string and one of its bytes
+    private void insertName(String nickname, boolean owner) {
+        if (namesPayload == null) {
+            return;
+        }
+        String name = owner ? "@" + nickname : nickname;
+        int length = namesPayload.length();
+        int at = 0;
+        while (at < length) {
+            int end = nameEnd(at);
+            if (compareName(at, end, nickname) > 0) {
+                break;
+            }
+            at = end + 1;
+        }
+        if (length == 0) {
+            splice(0, 0, name);
+        } else if (at >= length) {
+            splice(length, length, " " + name);
+        } else {
+            splice(at, at, name + " ");
+        }
+    }
+
+    // Cuts a name and one space next to it out of the cached payload and
+    // returns whether it was the owner's
+    private boolean removeName(String nickname) {
+        if (namesPayload == null) {
+            return false;
+        }
+        int length = namesPayload.length();
+        int at = 0;
+        while (at < length) {
+            int end = nameEnd(at);
+            if (compareName(at, end, nickname) == 0) {
+                boolean owner = namesPayload.charAt(at) == '@';
+                if (end < length) {
+                    splice(at, end + 1, "");
+                } else {
+                    splice(at > 0 ? at - 1 : at, end, "");
+                }
+                return owner;
+            }
+            at = end + 1;
+        }
+        return false;
+    }
+
+    private int nameEnd(int start) {
+        int end = namesPayload.indexOf(' ', start);
+        return end < 0 ? namesPayload.length() : end;
+    }
+
+    // Compares the name at [start, end) of the payload, without the owner's
+    // '@', with a nickname the way String.compareTo would
+    private int compareName(int start, int end, String nickname) {
+        if (namesPayload.charAt(start) == '@') {
+            start++;
+        }
+        int common = Math.min(end - start, nickname.length());
+        for (int i = 0; i < common; i++) {
+            int difference = namesPayload.charAt(start + i) - nickname.charAt(i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return (end - start) - nickname.length();
+    }
+
+    // Replaces [start, end) of the payload, and the matching bytes
+    private void splice(int start, int end, String replacement) {
+        int byteStart = utf8Length(namesPayload, 0, start);
+        int byteEnd = byteStart + utf8Length(namesPayload, start, end);
+        byte[] encodedReplacement = replacement.getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[encodedNamesPayload.length - (byteEnd - byteStart) + encodedReplacement.length];
+        System.arraycopy(encodedNamesPayload, 0, encoded, 0, byteStart);
+        System.arraycopy(encodedReplacement, 0, encoded, byteStart, encodedReplacement.length);
+        System.arraycopy(encodedNamesPayload, byteEnd, encoded, byteStart + encodedReplacement.length,
+                encodedNamesPayload.length - byteEnd);
+        namesPayload = namesPayload.substring(0, start) + replacement + namesPayload.substring(end);
+        encodedNamesPayload = encoded;
+    }
+
+    private static int utf8Length(String text, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,28 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * The server's handle on one connected client, independent of whether the
+ * client is serviced by a blocking worker or by the selector loop.
+ */
+interface ClientConnection {
+
+    /**
+     * Queues the given encoded response lines for delivery to the client, in
+     * order, without blocking on the socket.
+     *
+     * The buffers are shared by every recipient of a broadcast, so
+     * implementations must only ever read them through a
+     * {@link ByteBuffer#duplicate() duplicate}.
+     */
+    void send(List<ByteBuffer> responses);
+
+    /**
+     * The lines queued for this client but not yet written.
+     */
+    OutboundQueue getOutboundQueue();
+
+    void close() throws IOException;
+}
@@ -1,3 +1,6 @@
+import java.nio.ByteBuffer;
+
+
 public abstract class Command {
 
     
@@ -6,6 +9,11 @@ public abstract class Command {
    
     private final String sender;
 
+    // The relayed wire line, built on first use; a command is only ever
+    // handled by the one model thread that parsed it
+    private String line;
+    private ByteBuffer encoded;
+
    
     Command(int senderId, String sender) {
         this.senderId = senderId;
@@ -24,6 +32,22 @@ public abstract class Command {
 
     public abstract Broadcast updateServerModel(ServerModel model);
 
+    /**
+     * Builds the line relayed to other users for this command.
+     */
+    abstract String formatLine();
+
+    /**
+     * Returns the encoded wire line, terminator included. The buffer is
+     * shared and must only be read through a duplicate.
+     */
+    ByteBuffer getEncoded() {
+        if (encoded == null) {
+            encoded = Broadcast.encode(toString());
+        }
+        return encoded;
+    }
+
  
     @Override
     public boolean equals(Object o) {
@@ -35,6 +59,19 @@ public abstract class Command {
         }
         return this.toString().equals(o.toString());
     }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public final String toString() {
+        if (line == null) {
+            line = formatLine();
+        }
+        return line;
+    }
 }
 
 
@@ -56,8 +93,8 @@ class NicknameCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s NICK %s", getSender(), newNickname);
+    String formatLine() {
+        return ":" + getSender() + " NICK " + newNickname;
     }
 }
 
@@ -86,9 +123,8 @@ class CreateCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        int flag = inviteOnly ? 1 : 0;
-        return String.format(":%s CREATE %s %d", getSender(), channel, flag);
+    String formatLine() {
+        return ":" + getSender() + " CREATE " + channel + (inviteOnly ? " 1" : " 0");
     }
 }
 
@@ -111,8 +147,8 @@ class JoinCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s JOIN %s", getSender(), channel);
+    String formatLine() {
+        return ":" + getSender() + " JOIN " + channel;
     }
 }
 
@@ -144,8 +180,8 @@ class MessageCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s MESG %s :%s", getSender(), channel, message);
+    String formatLine() {
+        return ":" + getSender() + " MESG " + channel + " :" + message;
     }
 }
 
@@ -168,8 +204,8 @@ class LeaveCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s LEAVE %s", getSender(), channel);
+    String formatLine() {
+        return ":" + getSender() + " LEAVE " + channel;
     }
 }
 
@@ -198,8 +234,8 @@ class InviteCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s INVITE %s %s", getSender(), channel, userToInvite);
+    String formatLine() {
+        return ":" + getSender() + " INVITE " + channel + " " + userToInvite;
     }
 }
 
@@ -228,7 +264,7 @@ class KickCommand extends Command {
     }
 
     @Override
-    public String toString() {
-        return String.format(":%s KICK %s %s", getSender(), channel, userToKick);
+    String formatLine() {
+        return ":" + getSender() + " KICK " + channel + " " + userToKick;
     }
 }
@@ -1,51 +1,57 @@
-import java.util.List;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
 
 
 public final class CommandParsing {
 
-    
+    /**
+     * Parses one command line in a single pass over its characters.
+     *
+     * Only the fields the resulting command keeps are copied out of the
+     * line; tokens are otherwise tracked by index.
+     *
+     * @return the command, or null if the line is not a well-formed command
+     */
     public static Command parse(int senderId, String sender, String commandString) {
+        int length = commandString.length();
         CommandType commandType = null;
-        List<String> parameters = new LinkedList<>();
+        String param0 = null;
+        String param1 = null;
+        int parameterCount = 0;
         String payload = null;
-        int index;
 
-        while ((index = commandString.indexOf(' ')) > 0) {
-            if (commandString.startsWith(":")) {
-                payload = commandString.substring(1);
-                commandString = "";
+        int start = 0;
+        while (start < length) {
+            if (commandString.charAt(start) == ':') {
+                payload = commandString.substring(start + 1);
                 break;
-            } else {
-                String token = commandString.substring(0, index);
+            }
+            // A token runs to the next space; a space right at the start of
+            // the remainder makes the whole remainder one token
+            int end = commandString.indexOf(' ', start);
+            if (end <= start) {
+                end = length;
+            }
+            if (commandType == null) {
+                commandType = CommandType.of(commandString, start, end);
                 if (commandType == null) {
-                    commandType = CommandType.valueOf(token);
-                } else {
-                    parameters.add(token);
+                    return null;
                 }
-                commandString = commandString.substring(index + 1);
-            }
-        }
-
-        if (!commandString.isEmpty()) {
-            if (commandString.startsWith(":")) {
-                payload = commandString.substring(1);
-            } else if (commandType == null) {
-                commandType = CommandType.valueOf(commandString);
+            } else if (parameterCount == 0) {
+                param0 = commandString.substring(start, end);
+                parameterCount++;
+            } else if (parameterCount == 1) {
+                param1 = commandString.substring(start, end);
+                parameterCount++;
             } else {
-                parameters.add(commandString);
+                return null;
             }
+            start = end + 1;
         }
 
-        if (commandType == null) {
-            throw new IllegalArgumentException("Unknown command type");
-        } else if (parameters.size() > 2) {
-            throw new IllegalArgumentException("Too many parameters");
+        if (commandType == null || !commandType.isComplete(parameterCount, payload != null)) {
+            return null;
         }
 
-        String param0 = parameters.size() >= 1 ? parameters.get(0) : null;
-        String param1 = parameters.size() >= 2 ? parameters.get(1) : null;
-
         switch (commandType) {
             case CREATE:
                 boolean isInviteOnly;
@@ -74,8 +80,239 @@ public final class CommandParsing {
         }
     }
 
+    /**
+     * Parses one command line straight from the bytes it was read as,
+     * tokenizing the same way as {@link #parse(int, String, String)}.
+     *
+     * Strings are only created for the fields the resulting command keeps.
+     *
+     * @return the command, or null if the line is not a well-formed command
+     */
+    public static Command parse(int senderId, String sender, byte[] line, int offset, int length) {
+        int limit = offset + length;
+        CommandType commandType = null;
+        // Parameter and payload bounds within the line; -1 if absent
+        int param0Start = -1;
+        int param0End = -1;
+        int param1Start = -1;
+        int param1End = -1;
+        int payloadStart = -1;
+
+        int start = offset;
+        while (start < limit) {
+            if (line[start] == ':') {
+                payloadStart = start + 1;
+                break;
+            }
+            int end = indexOf(line, ' ', start, limit);
+            if (end <= start) {
+                end = limit;
+            }
+            if (commandType == null) {
+                commandType = CommandType.of(line, start, end);
+                if (commandType == null) {
+                    return null;
+                }
+            } else if (param0Start < 0) {
+                param0Start = start;
+                param0End = end;
+            } else if (param1Start < 0) {
+                param1Start = start;
+                param1End = end;
+            } else {
+                return null;
+            }
+            start = end + 1;
+        }
+
+        int parameterCount = param1Start >= 0 ? 2 : param0Start >= 0 ? 1 : 0;
+        if (commandType == null || !commandType.isComplete(parameterCount, payloadStart >= 0)) {
+            return null;
+        }
+
+        String param0 = decode(line, param0Start, param0End);
+        switch (commandType) {
+            case CREATE:
+                if (param1End - param1Start != 1 || (line[param1Start] != '0' && line[param1Start] != '1')) {
+                    return null;
+                }
+                return new CreateCommand(senderId, sender, param0, line[param1Start] == '1');
+            case INVITE:
+                return new InviteCommand(senderId, sender, param0, decode(line, param1Start, param1End));
+            case JOIN:
+                return new JoinCommand(senderId, sender, param0);
+            case KICK:
+                return new KickCommand(senderId, sender, param0, decode(line, param1Start, param1End));
+            case LEAVE:
+                return new LeaveCommand(senderId, sender, param0);
+            case MESG:
+                return new MessageCommand(senderId, sender, param0, decode(line, payloadStart, limit));
+            case NICK:
+                return new NicknameCommand(senderId, sender, param0);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns true if the command line is a NICK, which changes state shared
+     * by every channel rather than a single one.
+     */
+    static boolean isNicknameCommand(byte[] line, int offset, int length) {
+        return (length == 4 || length > 4 && line[offset + 4] == ' ')
+                && CommandType.NICK.matches(line, offset, offset + 4);
+    }
+
+    /**
+     * Returns true if the command line is a MESG, the only command that
+     * leaves the server state unchanged.
+     */
+    static boolean isMessageCommand(byte[] line, int offset, int length) {
+        return (length == 4 || length > 4 && line[offset + 4] == ' ')
+                && CommandType.MESG.matches(line, offset, offset + 4);
+    }
+
+    /**
+     * Returns a hash of the channel named by a command line's first
+     * parameter, or 0 if it has none. Only looks at the line's shape; it may
+     * still fail to parse.
+     */
+    static int channelHash(byte[] line, int offset, int length) {
+        int limit = offset + length;
+        int start = indexOf(line, ' ', offset, limit) + 1;
+        if (start == 0 || start == limit || line[start] == ':') {
+            return 0;
+        }
+        int end = indexOf(line, ' ', start, limit);
+        if (end < 0) {
+            end = limit;
+        }
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + line[i];
+        }
+        return hash;
+    }
+
+    private static int indexOf(byte[] line, char character, int start, int limit) {
+        for (int i = start; i < limit; i++) {
+            if (line[i] == character) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String decode(byte[] line, int start, int end) {
+        return start < 0 ? null : new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
     private enum CommandType {
-        CREATE, INVITE, JOIN, KICK, LEAVE, MESG, NICK
+        CREATE(2, false),
+        INVITE(2, false),
+        JOIN(1, false),
+        KICK(2, false),
+        LEAVE(1, false),
+        MESG(1, true),
+        NICK(1, false);
+
+        private final byte[] verb = name().getBytes(StandardCharsets.US_ASCII);
+        private final int parameters;
+        private final boolean payload;
+
+        CommandType(int parameters, boolean payload) {
+            this.parameters = parameters;
+            this.payload = payload;
+        }
+
+        /**
+         * Returns whether a line has everything this command needs; a line
+         * missing a parameter or the message must not become a command with
+         * null fields.
+         */
+        boolean isComplete(int parameterCount, boolean hasPayload) {
+            return parameterCount >= parameters && (hasPayload || !payload);
+        }
+
+        /**
+         * Looks up the verb in {@code line[start, end)}, or returns null if it
+         * is not one.
+         */
+        static CommandType of(String line, int start, int end) {
+            switch (end - start) {
+                case 4:
+                    if (line.startsWith("MESG", start)) {
+                        return MESG;
+                    } else if (line.startsWith("JOIN", start)) {
+                        return JOIN;
+                    } else if (line.startsWith("NICK", start)) {
+                        return NICK;
+                    } else if (line.startsWith("KICK", start)) {
+                        return KICK;
+                    }
+                    return null;
+                case 5:
+                    return line.startsWith("LEAVE", start) ? LEAVE : null;
+                case 6:
+                    if (line.startsWith("CREATE", start)) {
+                        return CREATE;
+                    } else if (line.startsWith("INVITE", start)) {
+                        return INVITE;
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Looks up the verb in {@code line[start, end)}, or returns null if it
+         * is not one.
+         */
+        static CommandType of(byte[] line, int start, int end) {
+            if (end <= start) {
+                return null;
+            }
+            CommandType candidate;
+            switch (line[start]) {
+                case 'C':
+                    candidate = CREATE;
+                    break;
+                case 'I':
+                    candidate = INVITE;
+                    break;
+                case 'J':
+                    candidate = JOIN;
+                    break;
+                case 'K':
+                    candidate = KICK;
+                    break;
+                case 'L':
+                    candidate = LEAVE;
+                    break;
+                case 'M':
+                    candidate = MESG;
+                    break;
+                case 'N':
+                    candidate = NICK;
+                    break;
+                default:
+                    return null;
+            }
+            return candidate.matches(line, start, end) ? candidate : null;
+        }
+
+        boolean matches(byte[] line, int start, int end) {
+            if (end - start != verb.length || end > line.length) {
+                return false;
+            }
+            for (int i = 0; i < verb.length; i++) {
+                if (line[start + i] != verb[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     private CommandParsing() {
@@ -0,0 +1,149 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * A fixed-size, log-linear histogram of non-negative long values, in the
+ * style of HdrHistogram.
+ *
+ * Values below {@value #SUB_BUCKETS} are counted exactly; above that, each
+ * power of two is split into {@value #HALF_SUB_BUCKETS} linear buckets, so
+ * any recorded value is reported within about 1.6% of its true value.
+ * Recording is lock-free and allocation-free and may happen from any number
+ * of threads; reads are not atomic with respect to concurrent recording.
+ *
+ * The buckets are striped: each thread records into one of several copies,
+ * chosen by its ID, so threads recording the same common value rarely
+ * contend on one counter. Reads add the stripes up.
+ */
+final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+    // A power of two, at least the number of cores up to a cap, as each
+    // stripe takes BUCKETS longs
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 8) * 2 - 1);
+
+    private final AtomicLongArray[] stripes;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public Histogram() {
+        stripes = new AtomicLongArray[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Records one value; negative values are recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        stripes[stripe()].incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    /**
+     * Returns the value at or below which the given percentage (0 to 100) of
+     * recorded values fall, or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            for (AtomicLongArray counts : stripes) {
+                seen += counts.get(i);
+            }
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may be lost.
+     */
+    public void reset() {
+        for (AtomicLongArray counts : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%d p99=%d p999=%d max=%d",
+                getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(99),
+                getValueAtPercentile(99.9), getMax());
+    }
+
+
+    // Spreads thread IDs, which are usually consecutive, over the stripes
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS
+                + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+    }
+
+    // The largest value that maps to the bucket
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int offset = index - SUB_BUCKETS;
+        int exponent = offset / HALF_SUB_BUCKETS + SUB_BUCKET_BITS;
+        long mantissa = offset % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        int shift = exponent - (SUB_BUCKET_BITS - 1);
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,180 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+
+/**
+ * A set of non-negative ints stored in a single open-addressed int array.
+ *
+ * Used for channel membership, where boxing every user ID into a tree node
+ * would cost several times the memory of the ID itself.
+ */
+final class IntHashSet {
+
+    private static final int EMPTY = -1;
+    private static final int MIN_CAPACITY = 4;
+
+    private int[] slots;
+    private int size;
+
+    public IntHashSet() {
+        slots = new int[MIN_CAPACITY];
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    private IntHashSet(int[] slots, int size) {
+        this.slots = slots;
+        this.size = size;
+    }
+
+    /**
+     * Returns an independent copy of this set, made by copying its array.
+     */
+    public IntHashSet copy() {
+        return new IntHashSet(slots.clone(), size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int mask = slots.length - 1;
+        for (int i = indexFor(value, mask); slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (slots[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the value was not already present
+     */
+    public boolean add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative values are not supported");
+        }
+        if ((size + 1) * 4 > slots.length * 3) {
+            resize(slots.length * 2);
+        }
+        int mask = slots.length - 1;
+        int i = indexFor(value, mask);
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return true if the value was present
+     */
+    public boolean remove(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int mask = slots.length - 1;
+        int i = indexFor(value, mask);
+        while (slots[i] != value) {
+            if (slots[i] == EMPTY) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // Shift later entries of the probe run back so lookups never stop early
+        int gap = i;
+        for (int j = (gap + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+            int home = indexFor(slots[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                slots[gap] = slots[j];
+                gap = j;
+            }
+        }
+        slots[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int slot : slots) {
+            if (slot != EMPTY) {
+                action.accept(slot);
+            }
+        }
+    }
+
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < slots.length && slots[from] == EMPTY) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < slots.length;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int value = slots[next];
+                next = advance(next + 1);
+                return value;
+            }
+        };
+    }
+
+    public int[] toArray() {
+        int[] values = new int[size];
+        int count = 0;
+        for (int slot : slots) {
+            if (slot != EMPTY) {
+                values[count++] = slot;
+            }
+        }
+        return values;
+    }
+
+    private void resize(int capacity) {
+        int[] old = slots;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        int mask = capacity - 1;
+        for (int value : old) {
+            if (value != EMPTY) {
+                int i = indexFor(value, mask);
+                while (slots[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = value;
+            }
+        }
+    }
+
+    private static int indexFor(int value, int mask) {
+        int h = value * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
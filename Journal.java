@@ -0,0 +1,223 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+
+/**
+ * An append-only, binary write-ahead log of the tasks that changed a
+ * model, for rebuilding it after a restart.
+ *
+ * Records are buffered in memory by {@link #append} and written with a
+ * single write and fsync by {@link #commit}, which the model thread calls
+ * once per batch before sending any of the batch's responses. Each record
+ * is framed as
+ *
+ *     int length, int crc32, byte type, int userId, byte[] payload
+ *
+ * where the length and checksum cover everything after the checksum. A
+ * record cut short or corrupted by a crash ends the log: {@link #replay}
+ * stops there and truncates the file so new records follow the last good
+ * one. Not thread-safe; each model shard owns one journal at a time.
+ *
+ * Records are written through the {@link RandomAccessFile} rather than its
+ * channel. The server interrupts model threads to stop them, and an
+ * interrupt during a channel write or force closes the channel, losing the
+ * last commit.
+ */
+final class Journal {
+
+    /** A user connected; no payload. */
+    static final byte REGISTRATION = 1;
+    /** A user disconnected; no payload. */
+    static final byte DISCONNECTION = 2;
+    /** A user's command line, without any ":prefix ". */
+    static final byte REQUEST = 3;
+    /**
+     * The server restarted; users with IDs below the record's are offline
+     * from here on. No payload.
+     */
+    static final byte RESTART = 4;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int BODY_HEADER_SIZE = 5;
+    // Bounds a corrupt length before it is used to allocate
+    private static final int MAX_RECORD_SIZE = BODY_HEADER_SIZE + 64 * 1024;
+
+    /**
+     * Receives the records of a journal being replayed, oldest first.
+     */
+    interface RecordHandler {
+        void record(byte type, int userId, byte[] payload);
+    }
+
+    private final Path file;
+    private final RandomAccessFile output;
+    // Only used to replay and truncate, before any interrupt can arrive
+    private final FileChannel channel;
+    private final CRC32 crc;
+    private ByteBuffer pending;
+    private int pendingRecords;
+    // Bytes in the file, all of them intact records
+    private long size;
+
+    public Journal(Path file) throws IOException {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        this.file = file;
+        boolean created = !Files.exists(file);
+        this.output = new RandomAccessFile(file.toFile(), "rw");
+        this.channel = output.getChannel();
+        this.crc = new CRC32();
+        this.pending = ByteBuffer.allocate(64 * 1024);
+        this.pendingRecords = 0;
+        this.size = 0;
+        if (created) {
+            // Or a crash could lose the new file, commits and all
+            try {
+                forceDirectory(file);
+            } catch (IOException iox) {
+                output.close();
+                throw iox;
+            }
+        }
+    }
+
+    /**
+     * Forces the directory holding a file to disk, so that creating,
+     * renaming or deleting the file survives a crash.
+     */
+    static void forceDirectory(Path file) throws IOException {
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(),
+                StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Passes every intact record to the handler, then truncates anything
+     * after the last one and positions the journal for appending.
+     *
+     * @return the number of records replayed
+     */
+    public long replay(RecordHandler handler) throws IOException {
+        long position = 0;
+        long records = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < BODY_HEADER_SIZE || length > MAX_RECORD_SIZE
+                    || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, position + HEADER_SIZE);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            body.flip();
+            byte type = body.get();
+            int userId = body.getInt();
+            byte[] payload = new byte[body.remaining()];
+            body.get(payload);
+            handler.record(type, userId, payload);
+            position += HEADER_SIZE + length;
+            records++;
+        }
+        if (position < size) {
+            System.err.printf("Journal %s: discarding %d bytes after the last intact record%n",
+                    file, size - position);
+            channel.truncate(position);
+            channel.force(true);
+        }
+        channel.position(position);
+        this.size = position;
+        return records;
+    }
+
+    /**
+     * Buffers a record; nothing reaches the file until {@link #commit}.
+     */
+    public void append(byte type, int userId, byte[] payload) {
+        int length = BODY_HEADER_SIZE + payload.length;
+        if (pending.remaining() < HEADER_SIZE + length) {
+            ByteBuffer larger = ByteBuffer.allocate(
+                    Math.max(pending.capacity() * 2, pending.position() + HEADER_SIZE + length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        int start = pending.position();
+        pending.putInt(length);
+        pending.putInt(0);
+        pending.put(type);
+        pending.putInt(userId);
+        pending.put(payload);
+        crc.reset();
+        crc.update(pending.array(), start + HEADER_SIZE, length);
+        pending.putInt(start + 4, (int) crc.getValue());
+        pendingRecords++;
+    }
+
+    /**
+     * Writes the buffered records and forces them to disk. Does nothing if
+     * no record has been appended since the last commit.
+     */
+    public void commit() throws IOException {
+        if (pendingRecords == 0) {
+            return;
+        }
+        try {
+            output.write(pending.array(), 0, pending.position());
+            output.getFD().sync();
+            size = output.getFilePointer();
+        } finally {
+            // A failed write is not retried; replay stops at whatever part
+            // of it reached the file
+            pending.clear();
+            pendingRecords = 0;
+        }
+    }
+
+    /**
+     * The number of bytes committed to the file.
+     */
+    public long size() {
+        return size;
+    }
+
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            output.close();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * Frames a client's input into lines directly in a reusable byte buffer,
+ * for both the blocking and the selector transport.
+ *
+ * Lines end at {@code '\n'}, with a trailing {@code '\r'} dropped. Each line
+ * is handed over as a range of the buffer that is only valid for the
+ * duration of the callback; nothing is decoded or copied here.
+ */
+final class LineReader {
+
+    /**
+     * Receives each complete line.
+     */
+    interface LineHandler {
+        void lineReceived(byte[] line, int offset, int length);
+    }
+
+    private final int maxLineLength;
+    private byte[] bytes;
+    private ByteBuffer view;
+    // Input read so far but not yet framed into a line
+    private int filled;
+    // How much of that has already been searched for a newline
+    private int scanned;
+
+    public LineReader(int initialCapacity, int maxLineLength) {
+        if (initialCapacity <= 0 || maxLineLength < initialCapacity) {
+            throw new IllegalArgumentException("Invalid buffer sizes");
+        }
+        this.maxLineLength = maxLineLength;
+        this.bytes = new byte[initialCapacity];
+        this.view = ByteBuffer.wrap(bytes);
+        this.filled = 0;
+        this.scanned = 0;
+    }
+
+    /**
+     * Reads once from a blocking stream and hands every complete line to the
+     * handler.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream, once
+     *         any final unterminated line has been handed over
+     * @throws IOException if a line exceeds the maximum length
+     */
+    public int read(InputStream in, LineHandler handler) throws IOException {
+        makeRoom();
+        int count = in.read(bytes, filled, bytes.length - filled);
+        if (count > 0) {
+            filled += count;
+        }
+        return frame(count, handler);
+    }
+
+    /**
+     * Reads once from a channel, which may be non-blocking, and hands every
+     * complete line to the handler.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream, once
+     *         any final unterminated line has been handed over
+     * @throws IOException if a line exceeds the maximum length
+     */
+    public int read(ReadableByteChannel channel, LineHandler handler) throws IOException {
+        makeRoom();
+        view.limit(bytes.length).position(filled);
+        int count = channel.read(view);
+        filled = view.position();
+        return frame(count, handler);
+    }
+
+    private int frame(int count, LineHandler handler) {
+        if (count < 0) {
+            // Like BufferedReader, hand over a final unterminated line
+            if (filled > 0) {
+                deliver(0, filled, handler);
+            }
+            filled = 0;
+            scanned = 0;
+            return -1;
+        }
+
+        int start = 0;
+        for (int i = scanned; i < filled; i++) {
+            if (bytes[i] == '\n') {
+                deliver(start, i, handler);
+                start = i + 1;
+            }
+        }
+        if (start > 0) {
+            System.arraycopy(bytes, start, bytes, 0, filled - start);
+            filled -= start;
+        }
+        scanned = filled;
+        return count;
+    }
+
+    private void deliver(int start, int end, LineHandler handler) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        handler.lineReceived(bytes, start, end - start);
+    }
+
+    private void makeRoom() throws IOException {
+        if (filled < bytes.length) {
+            return;
+        }
+        if (bytes.length >= maxLineLength) {
+            throw new IOException("Line too long");
+        }
+        byte[] larger = new byte[Math.min(bytes.length * 2, maxLineLength)];
+        System.arraycopy(bytes, 0, larger, 0, filled);
+        bytes = larger;
+        view = ByteBuffer.wrap(bytes);
+    }
+}
@@ -0,0 +1,41 @@
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * An unbounded {@link TaskQueue} backed by a {@link LinkedBlockingQueue}.
+ */
+final class LinkedTaskQueue<E> implements TaskQueue<E> {
+
+    private final BlockingQueue<E> queue;
+
+    public LinkedTaskQueue() {
+        queue = new LinkedBlockingQueue<>();
+    }
+
+    @Override
+    public void put(E element) {
+        queue.add(element);
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return queue.take();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> sink, int max) {
+        return queue.drainTo(sink, max);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+}
@@ -19,7 +19,8 @@ public final class MainServer {
         frame.setSize(new Dimension(250, 150));
 
         final ServerModel state = new ServerModel();
-        final ServerBackend server = new ServerBackend(state);
+        final ServerConfig config = ServerConfig.fromSystemProperties();
+        final ServerBackend server = new ServerBackend(state, config);
         final Timer timer = new Timer(100, null);
 
         timer.addActionListener(e -> {
@@ -30,7 +31,7 @@ public final class MainServer {
             }
         });
         timer.start();
-        new Thread(server, "Connection acceptor").start();
+        WorkerThreads.newThread(config.getThreading(), "Connection acceptor", server).start();
         frame.setVisible(true);
     }
 
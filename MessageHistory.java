@@ -0,0 +1,185 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * The last few MESG lines of each channel, kept to be replayed to users who
+ * join later.
+ *
+ * Each channel gets a ring of slots, each holding one encoded line and the
+ * time it was sent. A slot's buffer is reused by the lines that overwrite
+ * it and only grows for a longer line, so once a channel's ring has filled,
+ * recording a message copies its bytes and allocates nothing. The memory of
+ * all the rings together is capped: when a message takes it over the cap,
+ * the channels least recently messaged or joined lose their history first.
+ * Not thread-safe; each model owns one and uses it from its own thread.
+ */
+final class MessageHistory {
+
+    private static final int MIN_SLOT_SIZE = 64;
+    // Rough cost of a slot besides its line: the array entries and headers
+    private static final int SLOT_OVERHEAD = 32;
+
+    private final int messagesPerChannel;
+    private final long memoryLimit;
+    private final long maxAgeMillis;
+    // In access order, so the coldest channel comes first
+    private final LinkedHashMap<String, ChannelHistory> channels;
+    private long memoryUsed;
+
+    /**
+     * @param messagesPerChannel lines kept per channel
+     * @param memoryLimit        bytes all channels' history may take up
+     * @param maxAgeMillis       age past which lines are no longer replayed,
+     *                           or 0 for no limit
+     */
+    public MessageHistory(int messagesPerChannel, long memoryLimit, long maxAgeMillis) {
+        if (messagesPerChannel <= 0) {
+            throw new IllegalArgumentException("Messages per channel must be positive");
+        }
+        if (memoryLimit <= 0) {
+            throw new IllegalArgumentException("Memory limit must be positive");
+        }
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Maximum age must not be negative");
+        }
+        this.messagesPerChannel = messagesPerChannel;
+        this.memoryLimit = memoryLimit;
+        this.maxAgeMillis = maxAgeMillis;
+        this.channels = new LinkedHashMap<>(16, 0.75f, true);
+        this.memoryUsed = 0;
+    }
+
+    /**
+     * Records a line sent to a channel, overwriting its oldest line once the
+     * ring is full. The line is the buffer's remaining bytes, terminator
+     * included; they are copied with an absolute read, leaving the buffer
+     * untouched.
+     */
+    public void record(String channelName, ByteBuffer line, long timestamp) {
+        ChannelHistory history = channels.get(channelName);
+        if (history == null) {
+            history = new ChannelHistory(messagesPerChannel);
+            channels.put(channelName, history);
+            memoryUsed += history.memory;
+        }
+        memoryUsed += history.add(line, timestamp);
+        if (memoryUsed > memoryLimit) {
+            evictColdChannels();
+        }
+    }
+
+    /**
+     * Returns the channel's lines, oldest first, copied into one block of
+     * newline-terminated lines; or null if it has none young enough.
+     */
+    public byte[] replay(String channelName, long now) {
+        ChannelHistory history = channels.get(channelName);
+        if (history == null) {
+            return null;
+        }
+        return history.copyLines(maxAgeMillis > 0 ? now - maxAgeMillis : Long.MIN_VALUE);
+    }
+
+    /**
+     * Forgets a channel's history, so a new channel of the same name starts
+     * without it.
+     */
+    public void remove(String channelName) {
+        ChannelHistory history = channels.remove(channelName);
+        if (history != null) {
+            memoryUsed -= history.memory;
+        }
+    }
+
+    /**
+     * The bytes currently taken up by all channels' history.
+     */
+    public long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    // Drops whole channels, coldest first, until the rest fit. The channel
+    // just written to is the warmest, so it only goes if it alone is too big.
+    private void evictColdChannels() {
+        Iterator<ChannelHistory> coldest = channels.values().iterator();
+        while (memoryUsed > memoryLimit && coldest.hasNext()) {
+            memoryUsed -= coldest.next().memory;
+            coldest.remove();
+        }
+    }
+
+
+    /**
+     * One channel's ring of lines.
+     */
+    private static final class ChannelHistory {
+        private final byte[][] lines;
+        private final int[] lengths;
+        private final long[] timestamps;
+        // The slot the next line goes to, and how many slots are in use
+        private int next;
+        private int count;
+        private long memory;
+
+        public ChannelHistory(int slots) {
+            this.lines = new byte[slots][];
+            this.lengths = new int[slots];
+            this.timestamps = new long[slots];
+            this.next = 0;
+            this.count = 0;
+            this.memory = (long) slots * SLOT_OVERHEAD;
+        }
+
+        /**
+         * Copies a line into the next slot.
+         *
+         * @return how many bytes the slot's buffer grew by
+         */
+        public int add(ByteBuffer line, long timestamp) {
+            int length = line.remaining();
+            byte[] slot = lines[next];
+            int grown = 0;
+            if (slot == null || slot.length < length) {
+                int size = Math.max(length, MIN_SLOT_SIZE);
+                grown = size - (slot == null ? 0 : slot.length);
+                slot = new byte[size];
+                lines[next] = slot;
+                memory += grown;
+            }
+            line.get(line.position(), slot, 0, length);
+            lengths[next] = length;
+            timestamps[next] = timestamp;
+            next = (next + 1) % lines.length;
+            if (count < lines.length) {
+                count++;
+            }
+            return grown;
+        }
+
+        public byte[] copyLines(long oldestTimestamp) {
+            int first = (next - count + lines.length) % lines.length;
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                int slot = (first + i) % lines.length;
+                if (timestamps[slot] >= oldestTimestamp) {
+                    total += lengths[slot];
+                }
+            }
+            if (total == 0) {
+                return null;
+            }
+            byte[] block = new byte[total];
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                int slot = (first + i) % lines.length;
+                if (timestamps[slot] >= oldestTimestamp) {
+                    System.arraycopy(lines[slot], 0, block, offset, lengths[slot]);
+                    offset += lengths[slot];
+                }
+            }
+            return block;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Serves {@link ServerMetrics#format()} as plain text at {@code /metrics}
+ * for scraping. Listens on the loopback interface only, on its own thread,
+ * so a scrape never touches the model threads.
+ */
+final class MetricsEndpoint {
+
+    private static final String PATH = "/metrics";
+
+    private final ServerMetrics metrics;
+    private final HttpServer server;
+
+    public MetricsEndpoint(ServerMetrics metrics, int port) throws IOException {
+        if (metrics == null) {
+            throw new NullPointerException();
+        }
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, this::handle);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
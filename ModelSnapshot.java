@@ -0,0 +1,203 @@
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * An immutable, consistent view of the server state that any thread may
+ * read without locking.
+ *
+ * The model thread publishes a new snapshot after each batch of tasks,
+ * derived from the previous one by updating only what changed; the maps
+ * underneath are persistent, so unchanged users and channels are shared
+ * between snapshots. Collections returned here are read-only views and are
+ * never copied.
+ */
+public final class ModelSnapshot {
+
+    static final ModelSnapshot EMPTY = new ModelSnapshot(
+            PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(), 0);
+
+    private final PersistentMap<Integer, String> nicknames;
+    private final PersistentMap<String, Integer> userIds;
+    private final PersistentMap<String, ChannelSnapshot> channels;
+    // Users with lower IDs were registered before the last restart
+    private final int firstOnlineUserId;
+    // The shards' own snapshots when this combines several; null otherwise
+    private final ModelSnapshot[] shards;
+
+    ModelSnapshot(
+            PersistentMap<Integer, String> nicknames,
+            PersistentMap<String, Integer> userIds,
+            PersistentMap<String, ChannelSnapshot> channels,
+            int firstOnlineUserId
+    ) {
+        this.nicknames = nicknames;
+        this.userIds = userIds;
+        this.channels = channels;
+        this.firstOnlineUserId = firstOnlineUserId;
+        this.shards = null;
+    }
+
+    private ModelSnapshot(ModelSnapshot[] shards) {
+        this.nicknames = shards[0].nicknames;
+        this.userIds = shards[0].userIds;
+        this.channels = null;
+        this.firstOnlineUserId = shards[0].firstOnlineUserId;
+        this.shards = shards;
+    }
+
+    /**
+     * Joins the snapshots of models whose channels are partitioned between
+     * them and whose users are the same. Each channel is read together with
+     * the users of its own shard.
+     */
+    static ModelSnapshot combine(ModelSnapshot[] shards) {
+        return shards.length == 1 ? shards[0] : new ModelSnapshot(shards.clone());
+    }
+
+    PersistentMap<Integer, String> getNicknameMap() {
+        return nicknames;
+    }
+
+    PersistentMap<String, Integer> getUserIdMap() {
+        return userIds;
+    }
+
+    PersistentMap<String, ChannelSnapshot> getChannelMap() {
+        return channels;
+    }
+
+    int getFirstOnlineUserId() {
+        return firstOnlineUserId;
+    }
+
+    /**
+     * Returns the user's nickname, or null if the user is not registered.
+     */
+    public String getNickname(int userId) {
+        return nicknames.get(userId);
+    }
+
+    /**
+     * Returns the ID of the user holding the nickname, or -1 if none does.
+     */
+    public int getUserId(String nickname) {
+        Integer userId = userIds.get(nickname);
+        return userId == null ? -1 : userId;
+    }
+
+    /**
+     * Returns true if the user is registered but has not been connected
+     * since the server last restarted, and is only kept as the owner or
+     * member of channels.
+     */
+    public boolean isOffline(int userId) {
+        return userId < firstOnlineUserId && nicknames.containsKey(userId);
+    }
+
+    public Collection<String> getRegisteredUsers() {
+        return nicknames.values();
+    }
+
+    public Collection<String> getChannels() {
+        if (shards == null) {
+            return channels.keys();
+        }
+        return new AbstractCollection<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private int shard = 0;
+                    private Iterator<String> current = shards[0].channels.keys().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!current.hasNext() && shard < shards.length - 1) {
+                            current = shards[++shard].channels.keys().iterator();
+                        }
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return current.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                for (ModelSnapshot shard : shards) {
+                    size += shard.channels.size();
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns the channel, or null if there is no such channel.
+     */
+    public ChannelSnapshot getChannel(String channelName) {
+        ModelSnapshot owner = ownerOf(channelName);
+        return owner == null ? null : owner.channels.get(channelName);
+    }
+
+    public Collection<String> getUsersInChannel(String channelName) {
+        ModelSnapshot owner = ownerOf(channelName);
+        if (owner == null) {
+            return Collections.emptySet();
+        }
+        ChannelSnapshot channel = owner.channels.get(channelName);
+        return new AbstractCollection<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                Iterator<Integer> members = channel.getUserIds().iterator();
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return members.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return owner.nicknames.get(members.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return channel.size();
+            }
+        };
+    }
+
+    public String getOwner(String channelName) {
+        ModelSnapshot owner = ownerOf(channelName);
+        if (owner == null) {
+            return null;
+        }
+        return owner.nicknames.get(owner.channels.get(channelName).getOwnerId());
+    }
+
+    // The (shard) snapshot holding the channel, or null if none does
+    private ModelSnapshot ownerOf(String channelName) {
+        if (shards == null) {
+            return channels.containsKey(channelName) ? this : null;
+        }
+        for (ModelSnapshot shard : shards) {
+            if (shard.channels.containsKey(channelName)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+}
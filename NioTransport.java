@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Non-blocking transport: a single thread multiplexes the listening socket
+ * and every client channel through one {@link Selector}.
+ *
+ * Incoming bytes are framed into lines and handed to the {@link ServerBackend}
+ * exactly as a {@code ConnectionWorker} would, so the model sees the same
+ * Registration/Request/Disconnection tasks in either mode. Responses are
+ * queued by the model thread and written by the selector thread whenever the
+ * channel is writable.
+ */
+final class NioTransport implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int MAX_LINES_PER_WRITE = 64;
+
+    private final ServerBackend backend;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Queue<NioConnection> pendingWrites;
+
+    public NioTransport(ServerBackend backend, int port) throws IOException {
+        this.backend = backend;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.pendingWrites = new ConcurrentLinkedQueue<>();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException iox) {
+            serverChannel.close();
+            selector.close();
+            throw iox;
+        }
+    }
+
+    /**
+     * The listening socket, so the backend can close it to stop the loop.
+     */
+    public ServerSocketChannel getServerChannel() {
+        return serverChannel;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (backend.isRunning() && serverChannel.isOpen()) {
+                selector.select();
+                flushPendingWrites();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException iox) {
+                        iox.printStackTrace();
+                        connection.disconnect();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException x) {
+            if (serverChannel.isOpen()) {
+                x.printStackTrace();
+            }
+        } finally {
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Breaks the selector out of {@code select()}, e.g. after a stop request.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioConnection connection = new NioConnection(
+                    backend.nextUserId(), channel, key, backend.newOutboundQueue());
+            key.attach(connection);
+            backend.connectionOpened(connection.userId, connection);
+        }
+    }
+
+    private void flushPendingWrites() {
+        NioConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            connection.writeScheduled.set(false);
+            if (connection.closeRequested) {
+                connection.disconnect();
+                continue;
+            }
+            try {
+                connection.flush();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+                connection.disconnect();
+            }
+        }
+    }
+
+
+
+    private final class NioConnection implements ClientConnection, LineReader.LineHandler {
+        private final int userId;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final LineReader reader;
+        private final OutboundQueue outbound;
+        // Lines being gathered into one channel write, from inFlightStart up to
+        // inFlightEnd; only touched by the selector thread
+        private final ByteBuffer[] inFlight;
+        private final List<ByteBuffer> drained;
+        private int inFlightStart;
+        private int inFlightEnd;
+        private final AtomicBoolean writeScheduled;
+        private volatile boolean closeRequested;
+        private boolean disconnected;
+
+        public NioConnection(int userId, SocketChannel channel, SelectionKey key, OutboundQueue outbound) {
+            this.userId = userId;
+            this.channel = channel;
+            this.key = key;
+            this.reader = new LineReader(READ_BUFFER_SIZE, MAX_LINE_LENGTH);
+            this.outbound = outbound;
+            this.inFlight = new ByteBuffer[MAX_LINES_PER_WRITE];
+            this.drained = new ArrayList<>(MAX_LINES_PER_WRITE);
+            this.inFlightStart = 0;
+            this.inFlightEnd = 0;
+            this.writeScheduled = new AtomicBoolean();
+            this.closeRequested = false;
+            this.disconnected = false;
+        }
+
+        /**
+         * Called by the model thread: queues the lines and asks the selector
+         * thread to write them out.
+         */
+        @Override
+        public void send(List<ByteBuffer> responses) {
+            for (ByteBuffer response : responses) {
+                if (!outbound.offer(response.duplicate())) {
+                    // Slow consumer; let the selector thread tear it down
+                    closeRequested = true;
+                    break;
+                }
+            }
+            if (writeScheduled.compareAndSet(false, true)) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+
+        @Override
+        public void close() throws IOException {
+            key.cancel();
+            channel.close();
+        }
+
+        private void read() throws IOException {
+            if (reader.read(channel, this) < 0) {
+                disconnect();
+            }
+        }
+
+        @Override
+        public void lineReceived(byte[] line, int offset, int length) {
+            backend.requestReceived(userId, line, offset, length);
+        }
+
+        private void flush() throws IOException {
+            while (true) {
+                if (inFlightStart == inFlightEnd) {
+                    drained.clear();
+                    inFlightStart = 0;
+                    inFlightEnd = outbound.drainTo(drained, MAX_LINES_PER_WRITE);
+                    if (inFlightEnd == 0) {
+                        break;
+                    }
+                    drained.toArray(inFlight);
+                }
+
+                long written = channel.write(inFlight, inFlightStart, inFlightEnd - inFlightStart);
+                int completed = 0;
+                while (inFlightStart < inFlightEnd && !inFlight[inFlightStart].hasRemaining()) {
+                    inFlight[inFlightStart++] = null;
+                    completed++;
+                }
+                backend.getMetrics().recordWrite(completed, written);
+
+                if (inFlightStart < inFlightEnd) {
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+            }
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private void disconnect() {
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+            try {
+                close();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+            backend.connectionClosed(userId);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+
+
+/**
+ * A bounded queue of encoded response lines waiting to be written to one
+ * client.
+ *
+ * Model threads only ever offer into it; the connection's writer stage drains
+ * it. When a client stops reading and the queue fills up, the configured
+ * {@link ServerConfig.OverflowPolicy} decides whether the oldest lines are
+ * dropped or the offer is refused so the caller can disconnect the client.
+ */
+final class OutboundQueue {
+
+    private final int capacity;
+    private final ServerConfig.OverflowPolicy policy;
+    private final ArrayDeque<ByteBuffer> buffers;
+
+    private int highWaterMark;
+    private long enqueued;
+    private long dropped;
+
+    public OutboundQueue(int capacity, ServerConfig.OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (policy == null) {
+            throw new NullPointerException();
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.buffers = new ArrayDeque<>();
+    }
+
+    /**
+     * Queues a line for writing.
+     *
+     * @return false if the queue is full and the policy is to disconnect the
+     * client; the line is not queued in that case
+     */
+    public synchronized boolean offer(ByteBuffer line) {
+        if (buffers.size() >= capacity) {
+            if (policy == ServerConfig.OverflowPolicy.DISCONNECT) {
+                dropped++;
+                return false;
+            }
+            buffers.pollFirst();
+            dropped++;
+        }
+        buffers.addLast(line);
+        enqueued++;
+        highWaterMark = Math.max(highWaterMark, buffers.size());
+        return true;
+    }
+
+    /**
+     * Removes the next line to write, or returns null if there is none.
+     */
+    public synchronized ByteBuffer poll() {
+        return buffers.pollFirst();
+    }
+
+    /**
+     * Moves up to {@code max} queued lines into {@code sink}, oldest first.
+     *
+     * @return the number of lines moved
+     */
+    public synchronized int drainTo(List<ByteBuffer> sink, int max) {
+        int count = 0;
+        ByteBuffer line;
+        while (count < max && (line = buffers.pollFirst()) != null) {
+            sink.add(line);
+            count++;
+        }
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return buffers.isEmpty();
+    }
+
+    /**
+     * The number of lines currently waiting to be written.
+     */
+    public synchronized int getDepth() {
+        return buffers.size();
+    }
+
+    /**
+     * The deepest the queue has ever been.
+     */
+    public synchronized int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public synchronized long getEnqueued() {
+        return enqueued;
+    }
+
+    /**
+     * Lines discarded because the queue was full.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
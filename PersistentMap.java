@@ -0,0 +1,545 @@
+import java.util.*;
+
+
+/**
+ * An immutable hash map whose updates return a new map sharing all but the
+ * changed path with the old one (a hash array mapped trie).
+ *
+ * Lookups and updates touch at most seven small nodes, so the model thread
+ * can derive the next published snapshot from the previous one cheaply, and
+ * readers on other threads can use any snapshot without locking or copying.
+ */
+final class PersistentMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int MAX_SHIFT = 30;
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    // Null for the empty map
+    private final BitmapNode root;
+    private final int size;
+
+    private PersistentMap(BitmapNode root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the value for the key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (root == null || key == null) {
+            return null;
+        }
+        int hash = hash(key);
+        Object node = root;
+        int shift = 0;
+        while (true) {
+            if (node instanceof Leaf<?, ?> leaf) {
+                return leaf.hash == hash && leaf.key.equals(key) ? (V) leaf.value : null;
+            } else if (node instanceof CollisionNode collision) {
+                return (V) collision.get(key);
+            }
+            BitmapNode bitmapNode = (BitmapNode) node;
+            int bit = bit(hash, shift);
+            if ((bitmapNode.bitmap & bit) == 0) {
+                return null;
+            }
+            node = bitmapNode.slots[bitmapNode.index(bit)];
+            shift += BITS;
+        }
+    }
+
+    /**
+     * Returns a map with the key bound to the value; this map if it already
+     * was.
+     */
+    public PersistentMap<K, V> put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        Leaf<K, V> leaf = new Leaf<>(hash(key), key, value);
+        if (root == null) {
+            return new PersistentMap<>(BitmapNode.of(leaf, 0), 1);
+        }
+        boolean[] added = new boolean[1];
+        BitmapNode newRoot = (BitmapNode) put(root, leaf, 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Returns a map without the key; this map if it had no such key.
+     */
+    public PersistentMap<K, V> remove(Object key) {
+        if (root == null || key == null) {
+            return this;
+        }
+        Object newRoot = remove(root, hash(key), key, 0);
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot == null) {
+            return empty();
+        }
+        if (newRoot instanceof Leaf<?, ?> leaf) {
+            newRoot = BitmapNode.of(leaf, 0);
+        }
+        return new PersistentMap<>((BitmapNode) newRoot, size - 1);
+    }
+
+    /**
+     * Returns a builder for a map that starts out large. Building it in one
+     * go allocates each node once, where the same number of {@link #put}
+     * calls would copy a path of nodes for every entry.
+     *
+     * @param expectedSize how many entries will be put; only sizes the builder
+     */
+    static <K, V> Builder<K, V> builder(int expectedSize) {
+        return new Builder<>(expectedSize);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+    }
+
+    /**
+     * A read-only view of the keys, in no particular order.
+     */
+    public Collection<K> keys() {
+        return new AbstractCollection<K>() {
+            @Override
+            public Iterator<K> iterator() {
+                Iterator<Map.Entry<K, V>> entries = PersistentMap.this.iterator();
+                return new Iterator<K>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public K next() {
+                        return entries.next().getKey();
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * A read-only view of the values, in no particular order.
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                Iterator<Map.Entry<K, V>> entries = PersistentMap.this.iterator();
+                return new Iterator<V>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public V next() {
+                        return entries.next().getValue();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        for (Map.Entry<K, V> entry : this) {
+            joiner.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return joiner.toString();
+    }
+
+
+    private static int hash(Object key) {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    // Returns the node (or leaf) replacing the given one after the insertion
+    private static Object put(Object node, Leaf<?, ?> leaf, int shift, boolean[] added) {
+        if (node instanceof Leaf<?, ?> existing) {
+            if (existing.hash == leaf.hash && existing.key.equals(leaf.key)) {
+                return existing.value == leaf.value ? existing : leaf;
+            }
+            added[0] = true;
+            return merge(existing, leaf, shift);
+        } else if (node instanceof CollisionNode collision) {
+            return collision.put(leaf, added);
+        }
+
+        BitmapNode bitmapNode = (BitmapNode) node;
+        int bit = bit(leaf.hash, shift);
+        int index = bitmapNode.index(bit);
+        if ((bitmapNode.bitmap & bit) == 0) {
+            added[0] = true;
+            return bitmapNode.insert(bit, index, leaf);
+        }
+        Object child = bitmapNode.slots[index];
+        Object newChild = put(child, leaf, shift + BITS, added);
+        return newChild == child ? bitmapNode : bitmapNode.replace(index, newChild);
+    }
+
+    // Returns the replacement, which may be a lone leaf to be inlined by the
+    // parent, or null if nothing is left
+    private static Object remove(Object node, int hash, Object key, int shift) {
+        if (node instanceof Leaf<?, ?> leaf) {
+            return leaf.hash == hash && leaf.key.equals(key) ? null : leaf;
+        } else if (node instanceof CollisionNode collision) {
+            return collision.remove(key);
+        }
+
+        BitmapNode bitmapNode = (BitmapNode) node;
+        int bit = bit(hash, shift);
+        if ((bitmapNode.bitmap & bit) == 0) {
+            return bitmapNode;
+        }
+        int index = bitmapNode.index(bit);
+        Object child = bitmapNode.slots[index];
+        Object newChild = remove(child, hash, key, shift + BITS);
+        if (newChild == child) {
+            return bitmapNode;
+        }
+        if (newChild == null) {
+            if (bitmapNode.slots.length == 1) {
+                return null;
+            }
+            BitmapNode smaller = bitmapNode.delete(bit, index);
+            if (smaller.slots.length == 1 && smaller.slots[0] instanceof Leaf<?, ?> only) {
+                return only;
+            }
+            return smaller;
+        }
+        if (bitmapNode.slots.length == 1 && newChild instanceof Leaf<?, ?>) {
+            return newChild;
+        }
+        return bitmapNode.replace(index, newChild);
+    }
+
+    // Builds the node holding leaves[from, to), which all agree on the
+    // hash bits below the shift; scratch has room for as many leaves, and
+    // starts and cursors hold one counting array per level of the trie
+    private static Object buildNode(Leaf<?, ?>[] leaves, Leaf<?, ?>[] scratch,
+                                    int[][] starts, int[][] cursors, int from, int to, int shift) {
+        if (to - from == 1) {
+            return leaves[from];
+        }
+        if (shift > MAX_SHIFT) {
+            return new CollisionNode(Arrays.copyOfRange(leaves, from, to));
+        }
+        return buildBitmapNode(leaves, scratch, starts, cursors, from, to, shift);
+    }
+
+    private static BitmapNode buildBitmapNode(Leaf<?, ?>[] leaves, Leaf<?, ?>[] scratch,
+                                              int[][] levelStarts, int[][] levelCursors,
+                                              int from, int to, int shift) {
+        // Counting sort on this level's five bits, keeping the leaves of
+        // each child together. A level's arrays are free again once its
+        // node is built, so each level reuses one pair.
+        int[] starts = levelStarts[shift / BITS];
+        Arrays.fill(starts, 0);
+        for (int i = from; i < to; i++) {
+            starts[((leaves[i].hash >>> shift) & MASK) + 1]++;
+        }
+        int bitmap = 0;
+        for (int chunk = 0; chunk < 1 << BITS; chunk++) {
+            if (starts[chunk + 1] > 0) {
+                bitmap |= 1 << chunk;
+            }
+            starts[chunk + 1] += starts[chunk];
+        }
+        int[] next = levelCursors[shift / BITS];
+        System.arraycopy(starts, 0, next, 0, 1 << BITS);
+        for (int i = from; i < to; i++) {
+            scratch[from + next[(leaves[i].hash >>> shift) & MASK]++] = leaves[i];
+        }
+        System.arraycopy(scratch, from, leaves, from, to - from);
+
+        Object[] slots = new Object[Integer.bitCount(bitmap)];
+        int slot = 0;
+        for (int chunk = 0; chunk < 1 << BITS; chunk++) {
+            if (starts[chunk + 1] > starts[chunk]) {
+                slots[slot++] = buildNode(leaves, scratch, levelStarts, levelCursors,
+                        from + starts[chunk], from + starts[chunk + 1], shift + BITS);
+            }
+        }
+        return new BitmapNode(bitmap, slots);
+    }
+
+    private static Object merge(Leaf<?, ?> first, Leaf<?, ?> second, int shift) {
+        if (shift > MAX_SHIFT) {
+            return new CollisionNode(new Leaf<?, ?>[] {first, second});
+        }
+        int firstBit = bit(first.hash, shift);
+        int secondBit = bit(second.hash, shift);
+        if (firstBit == secondBit) {
+            return new BitmapNode(firstBit, new Object[] {merge(first, second, shift + BITS)});
+        }
+        Object[] slots = Integer.compareUnsigned(firstBit, secondBit) < 0
+                ? new Object[] {first, second}
+                : new Object[] {second, first};
+        return new BitmapNode(firstBit | secondBit, slots);
+    }
+
+
+    private static final class Leaf<K, V> implements Map.Entry<K, V> {
+        private final int hash;
+        private final K key;
+        private final V value;
+
+        public Leaf(int hash, K key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class BitmapNode {
+        private final int bitmap;
+        // Leaf, BitmapNode or CollisionNode for each set bit, in bit order
+        private final Object[] slots;
+
+        public BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        public static BitmapNode of(Leaf<?, ?> leaf, int shift) {
+            return new BitmapNode(bit(leaf.hash, shift), new Object[] {leaf});
+        }
+
+        public int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        public BitmapNode insert(int bit, int index, Object child) {
+            Object[] newSlots = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, newSlots, 0, index);
+            newSlots[index] = child;
+            System.arraycopy(slots, index, newSlots, index + 1, slots.length - index);
+            return new BitmapNode(bitmap | bit, newSlots);
+        }
+
+        public BitmapNode replace(int index, Object child) {
+            Object[] newSlots = slots.clone();
+            newSlots[index] = child;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        public BitmapNode delete(int bit, int index) {
+            Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, index);
+            System.arraycopy(slots, index + 1, newSlots, index, newSlots.length - index);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+    }
+
+    // Keys whose hashes are identical in all 32 bits
+    private static final class CollisionNode {
+        private final Leaf<?, ?>[] leaves;
+
+        public CollisionNode(Leaf<?, ?>[] leaves) {
+            this.leaves = leaves;
+        }
+
+        public Object get(Object key) {
+            for (Leaf<?, ?> leaf : leaves) {
+                if (leaf.key.equals(key)) {
+                    return leaf.value;
+                }
+            }
+            return null;
+        }
+
+        public Object put(Leaf<?, ?> leaf, boolean[] added) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(leaf.key)) {
+                    if (leaves[i].value == leaf.value) {
+                        return this;
+                    }
+                    Leaf<?, ?>[] newLeaves = leaves.clone();
+                    newLeaves[i] = leaf;
+                    return new CollisionNode(newLeaves);
+                }
+            }
+            added[0] = true;
+            Leaf<?, ?>[] newLeaves = Arrays.copyOf(leaves, leaves.length + 1);
+            newLeaves[leaves.length] = leaf;
+            return new CollisionNode(newLeaves);
+        }
+
+        public Object remove(Object key) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(key)) {
+                    if (leaves.length == 2) {
+                        return leaves[1 - i];
+                    }
+                    Leaf<?, ?>[] newLeaves = new Leaf<?, ?>[leaves.length - 1];
+                    System.arraycopy(leaves, 0, newLeaves, 0, i);
+                    System.arraycopy(leaves, i + 1, newLeaves, i, newLeaves.length - i);
+                    return new CollisionNode(newLeaves);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Collects entries for a new map. Keys must be distinct.
+     */
+    static final class Builder<K, V> {
+        private Leaf<?, ?>[] leaves;
+        private int size;
+
+        private Builder(int expectedSize) {
+            this.leaves = new Leaf<?, ?>[Math.max(expectedSize, 16)];
+            this.size = 0;
+        }
+
+        public Builder<K, V> put(K key, V value) {
+            if (key == null || value == null) {
+                throw new NullPointerException();
+            }
+            if (size == leaves.length) {
+                leaves = Arrays.copyOf(leaves, size * 2);
+            }
+            leaves[size++] = new Leaf<>(hash(key), key, value);
+            return this;
+        }
+
+        public PersistentMap<K, V> build() {
+            if (size == 0) {
+                return empty();
+            }
+            Leaf<?, ?>[] sorted = leaves.length == size ? leaves : Arrays.copyOf(leaves, size);
+            int levels = MAX_SHIFT / BITS + 1;
+            Object root = buildNode(sorted, new Leaf<?, ?>[size],
+                    new int[levels][(1 << BITS) + 1], new int[levels][1 << BITS], 0, size, 0);
+            if (root instanceof Leaf<?, ?> leaf) {
+                return new PersistentMap<>(BitmapNode.of(leaf, 0), 1);
+            }
+            return new PersistentMap<>((BitmapNode) root, size);
+        }
+    }
+
+    // Depth-first walk over the trie with an explicit stack
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Deque<Object[]> nodes;
+        private final Deque<Integer> positions;
+        private Leaf<K, V> next;
+
+        public EntryIterator(BitmapNode root) {
+            nodes = new ArrayDeque<>();
+            positions = new ArrayDeque<>();
+            if (root != null) {
+                nodes.push(root.slots);
+                positions.push(0);
+            }
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Leaf<K, V> current = next;
+            advance();
+            return current;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (!nodes.isEmpty()) {
+                Object[] slots = nodes.peek();
+                int position = positions.pop();
+                if (position == slots.length) {
+                    nodes.pop();
+                    continue;
+                }
+                positions.push(position + 1);
+                Object slot = slots[position];
+                if (slot instanceof Leaf<?, ?> leaf) {
+                    next = (Leaf<K, V>) leaf;
+                    return;
+                } else if (slot instanceof CollisionNode collision) {
+                    nodes.push(collision.leaves);
+                } else {
+                    nodes.push(((BitmapNode) slot).slots);
+                }
+                positions.push(0);
+            }
+        }
+    }
+}
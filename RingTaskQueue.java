@@ -0,0 +1,180 @@
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A bounded, lock-free, multi-producer/single-consumer {@link TaskQueue}
+ * over a preallocated ring of slots.
+ *
+ * Each slot carries a sequence number that tells producers when it is free
+ * and the consumer when it has been filled, so producers only contend on a
+ * single CAS of the tail and nothing is allocated per element. Only one
+ * thread may ever call {@link #take()} or {@link #drainTo}.
+ */
+final class RingTaskQueue<E> implements TaskQueue<E> {
+
+    private static final int SPINS_BEFORE_YIELD = 100;
+    private static final int YIELDS_BEFORE_PARK = 100;
+    private static final long PRODUCER_PARK_NANOS = 1_000;
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final ServerConfig.WaitStrategy waitStrategy;
+
+    private final AtomicLong tail;
+    // Written only by the consumer; volatile so size() may be read anywhere
+    private volatile long head;
+
+    private volatile Thread consumer;
+    private volatile boolean consumerParked;
+
+    public RingTaskQueue(int capacity, ServerConfig.WaitStrategy waitStrategy) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        if (waitStrategy == null) {
+            throw new NullPointerException();
+        }
+        this.slots = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+        this.tail = new AtomicLong();
+        this.head = 0;
+    }
+
+    /**
+     * Adds an element if there is room.
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = element;
+                    // Volatile store publishes the slot and orders it before
+                    // the consumerParked check below
+                    sequences.set(index, position + 1);
+                    if (consumerParked) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public void put(E element) {
+        int attempts = 0;
+        while (!offer(element)) {
+            idle(attempts++);
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        consumer = Thread.currentThread();
+        int attempts = 0;
+        E element;
+        while ((element = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (waitStrategy == ServerConfig.WaitStrategy.PARK && attempts >= SPINS_BEFORE_YIELD) {
+                // Producers check consumerParked after publishing, so re-check
+                // for an element only once the flag is visible
+                consumerParked = true;
+                if (isEmpty()) {
+                    LockSupport.park(this);
+                }
+                consumerParked = false;
+            } else {
+                idle(attempts);
+            }
+            attempts++;
+        }
+        return element;
+    }
+
+    /**
+     * Removes the oldest element, or returns null if the ring is empty.
+     * Consumer thread only.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E element = (E) slots[index];
+        slots[index] = null;
+        sequences.set(index, position + slots.length);
+        head = position + 1;
+        return element;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public int drainTo(Collection<? super E> sink, int max) {
+        long position = head;
+        int count = 0;
+        while (count < max) {
+            int index = (int) (position + count) & mask;
+            if (sequences.get(index) != position + count + 1) {
+                break;
+            }
+            sink.add((E) slots[index]);
+            slots[index] = null;
+            sequences.lazySet(index, position + count + slots.length);
+            count++;
+        }
+        // Publish the new head once for the whole batch
+        head = position + count;
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long position = head;
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, slots.length));
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    private void idle(int attempts) {
+        if (waitStrategy == ServerConfig.WaitStrategy.BUSY_SPIN || attempts < SPINS_BEFORE_YIELD) {
+            Thread.onSpinWait();
+        } else if (waitStrategy == ServerConfig.WaitStrategy.YIELD
+                || attempts < SPINS_BEFORE_YIELD + YIELDS_BEFORE_PARK) {
+            Thread.yield();
+        } else {
+            // Only the consumer is woken explicitly; waiting producers poll
+            LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+        }
+    }
+}
@@ -1,35 +1,82 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 
 final class ServerBackend implements Runnable {
 
-    private final ServerModel model;
+    private static final int PORT = 21212;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final String METRICS_MBEAN_NAME = "chatserver:type=ServerMetrics";
+    private static final byte[] NO_PAYLOAD = new byte[0];
 
-    private final BlockingQueue<Task> taskQueue;
+    private final ServerConfig config;
+
+    // Channels are partitioned across the shards by name; every shard holds
+    // an identical copy of the user table
+    private final ModelShard[] shards;
+    // Keeps tasks replicated to every shard in the same order on all of them
+    private final Object replicationLock;
 
     private volatile ServerSocket serverSocket;
-    private final Map<Integer, Socket> openSockets;
+    private volatile NioTransport nioTransport;
+    private final Map<Integer, ClientConnection> openSockets;
+    private final AtomicInteger nextId;
+    private final ServerMetrics metrics;
+    private final ServerLog log;
+    // Saves snapshot files in the background; null unless journaling
+    private volatile ExecutorService snapshotWriter;
 
     private volatile boolean running;
-    private volatile Thread modelThread;
+    // Set once a journal write fails; from then on no response is sent, as
+    // the change it reports might not survive a crash
+    private volatile boolean journalFailed;
 
     public ServerBackend(ServerModel model) {
-        if (model == null) {
+        this(model, new ServerConfig());
+    }
+
+    /**
+     * @param model the model for the first shard; any further shards the
+     *              configuration asks for get fresh models of their own
+     */
+    public ServerBackend(ServerModel model, ServerConfig config) {
+        if (model == null || config == null) {
             throw new NullPointerException();
         }
-        this.model = model;
-        taskQueue = new LinkedBlockingQueue<>();
+        this.config = config;
+        shards = new ModelShard[config.getModelShards()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new ModelShard(i, i == 0 ? model : new ServerModel());
+            if (config.getHistorySize() > 0) {
+                shards[i].model.setMessageHistory(new MessageHistory(config.getHistorySize(),
+                        Math.max(1, config.getHistoryMemory() / shards.length), config.getHistoryMaxAge()));
+            }
+        }
+        replicationLock = new Object();
         serverSocket = null;
+        nioTransport = null;
         openSockets = Collections.synchronizedMap(new HashMap<>());
+        nextId = new AtomicInteger();
+        metrics = new ServerMetrics();
+        log = new ServerLog(config);
         running = false;
-        modelThread = null;
+        journalFailed = false;
     }
 
     public boolean isRunning() {
@@ -40,56 +87,64 @@ final class ServerBackend implements Runnable {
     public void run() {
         running = true;
 
-        // Attempt to open the ServerSocket; abort on failure
+        // Rebuild the model from the journals before accepting anyone
         try {
-            serverSocket = new ServerSocket(21212);
+            recover();
+        } catch (IOException | RuntimeException x) {
+            x.printStackTrace();
+            running = false;
+            return;
+        }
+
+        // Attempt to open the listening socket; abort on failure
+        try {
+            if (config.getTransport() == ServerConfig.Transport.SELECTOR) {
+                nioTransport = new NioTransport(this, PORT);
+                serverSocket = nioTransport.getServerChannel().socket();
+            } else {
+                serverSocket = new ServerSocket(PORT);
+            }
         } catch (IOException iox) {
             iox.printStackTrace();
             running = false;
             serverSocket = null;
+            return;
         }
 
-        // Start the model thread
-        modelThread = new Thread(() -> {
-            while (running || !taskQueue.isEmpty()) {
-                Task task;
-                try {
-                    task = taskQueue.take();
-                } catch (InterruptedException ix) {
-                    continue;
-                }
-                try {
-                    dispatchBroadcast(task.getBroadcast());
-                } catch (RuntimeException rx) {
-                    rx.printStackTrace();
-                }
-            }
+        log.start();
 
-            try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-                }
-            } catch (IOException iox) {
-                iox.printStackTrace();
-            }
-        }, "Model thread");
-        modelThread.start();
+        // Start the model threads
+        for (ModelShard shard : shards) {
+            shard.start();
+        }
+        ObjectName metricsName = registerMetrics();
+        MetricsEndpoint metricsEndpoint = startMetricsEndpoint();
 
-        ExecutorService workerPool = Executors.newCachedThreadPool();
+        ExecutorService workerPool = WorkerThreads.newWorkerPool(config.getThreading());
         try {
-            int nextId = 0;
-            while (running && !serverSocket.isClosed()) {
-                int userId = nextId++;
-                Socket clientSocket = serverSocket.accept();
-                openSockets.put(userId, clientSocket);
-                taskQueue.add(new Registration(userId));
-                workerPool.execute(new ConnectionWorker(userId, clientSocket));
+            if (nioTransport != null) {
+                nioTransport.run();
+            } else {
+                while (running && !serverSocket.isClosed()) {
+                    Socket clientSocket = serverSocket.accept();
+                    int userId = nextUserId();
+                    connectionOpened(userId, new SocketConnection(
+                            clientSocket, newOutboundQueue(), workerPool, metrics));
+                    workerPool.execute(new ConnectionWorker(userId, clientSocket));
+                }
             }
         } catch (IOException iox) {
             iox.printStackTrace();
         } finally {
             running = false;
             workerPool.shutdown();
+            if (metricsEndpoint != null) {
+                metricsEndpoint.stop();
+            }
+            unregisterMetrics(metricsName);
+            if (snapshotWriter != null) {
+                snapshotWriter.shutdown();
+            }
             try {
                 if (serverSocket != null && !serverSocket.isClosed()) {
                     serverSocket.close();
@@ -101,11 +156,11 @@ final class ServerBackend implements Runnable {
             }
 
             synchronized (openSockets) {
-                Iterator<Socket> iterator = openSockets.values().iterator();
+                Iterator<ClientConnection> iterator = openSockets.values().iterator();
                 while (iterator.hasNext()) {
-                    Socket clientSocket = iterator.next();
+                    ClientConnection connection = iterator.next();
                     try {
-                        clientSocket.close();
+                        connection.close();
                     } catch (IOException iox) {
                         iox.printStackTrace();
                     } finally {
@@ -113,6 +168,7 @@ final class ServerBackend implements Runnable {
                     }
                 }
             }
+            log.close();
         }
     }
 
@@ -125,40 +181,699 @@ final class ServerBackend implements Runnable {
                 iox.printStackTrace();
             }
         }
-        if (modelThread != null) {
-            modelThread.interrupt();
+        if (nioTransport != null) {
+            nioTransport.wakeup();
+        }
+        for (ModelShard shard : shards) {
+            shard.interrupt();
+        }
+    }
+
+
+    /**
+     * Loads each shard's snapshot file, replays its journals on top and
+     * numbers new users after every user found there.
+     *
+     * Nobody found there is connected any more. Users in no channel on any
+     * shard are dropped as if they had quit; the rest stay on every shard as
+     * offline owners and members of their channels, until a new connection
+     * takes their nickname. Both steps are journaled, so replaying the
+     * journal reaches the same state.
+     */
+    private void recover() throws IOException {
+        if (config.getJournalDirectory() == null) {
+            return;
+        }
+        Files.createDirectories(config.getJournalDirectory());
+        if (config.getSnapshotThreshold() > 0) {
+            snapshotWriter = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "Snapshot writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        int highestUserId = -1;
+        for (ModelShard shard : shards) {
+            highestUserId = Math.max(highestUserId, shard.recover());
+        }
+
+        // Every shard holds the same users, but each only their own channels
+        ServerModel first = shards[0].model;
+        List<Integer> departed = new ArrayList<>();
+        for (String nickname : first.getRegisteredUsers()) {
+            int userId = first.getUserId(nickname);
+            boolean member = false;
+            for (ModelShard shard : shards) {
+                member |= shard.model.isChannelMember(userId);
+            }
+            if (!member) {
+                departed.add(userId);
+            }
+        }
+        for (ModelShard shard : shards) {
+            shard.restart(departed, highestUserId + 1);
+        }
+        System.out.printf("Kept %d users from the last run offline in their channels; dropped %d in none\n",
+                first.getRegisteredUsers().size(), departed.size());
+        nextId.set(highestUserId + 1);
+    }
+
+    int nextUserId() {
+        return nextId.getAndIncrement();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Exposes the metrics over JMX; returns the name registered, or null
+    private ObjectName registerMetrics() {
+        try {
+            ObjectName name = new ObjectName(METRICS_MBEAN_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            return name;
+        } catch (JMException jmx) {
+            jmx.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void unregisterMetrics(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.unregisterMBean(name);
+        } catch (JMException jmx) {
+            jmx.printStackTrace();
+        }
+    }
+
+    private MetricsEndpoint startMetricsEndpoint() {
+        if (config.getMetricsPort() == 0) {
+            return null;
+        }
+        try {
+            MetricsEndpoint endpoint = new MetricsEndpoint(metrics, config.getMetricsPort());
+            endpoint.start();
+            return endpoint;
+        } catch (IOException iox) {
+            iox.printStackTrace();
+            return null;
+        }
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.getOutboundQueueCapacity(), config.getOverflowPolicy());
+    }
+
+    /**
+     * Returns how many response lines are waiting to be written to each
+     * connected client.
+     */
+    public Map<Integer, Integer> getOutboundQueueDepths() {
+        Map<Integer, Integer> depths = new TreeMap<>();
+        synchronized (openSockets) {
+            for (Map.Entry<Integer, ClientConnection> entry : openSockets.entrySet()) {
+                depths.put(entry.getKey(), entry.getValue().getOutboundQueue().getDepth());
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Returns a consistent view of the server state as of the most recent
+     * batch, readable from any thread without stalling the model threads.
+     * With several shards, each channel is as of its own shard's last batch.
+     */
+    public ModelSnapshot getSnapshot() {
+        ModelSnapshot[] snapshots = new ModelSnapshot[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            snapshots[i] = shards[i].model.getSnapshot();
+        }
+        return ModelSnapshot.combine(snapshots);
+    }
+
+    /**
+     * Called by a transport once a client has been accepted.
+     */
+    void connectionOpened(int userId, ClientConnection connection) {
+        openSockets.put(userId, connection);
+        metrics.recordConnectionOpened();
+        replicate(new Registration(userId));
+    }
+
+    /**
+     * Called by a transport for every line read from a client. The bytes
+     * are only valid for the duration of the call.
+     */
+    void requestReceived(int userId, byte[] line, int offset, int length) {
+        log.log(ServerLog.Event.REQUEST_RECEIVED, userId, line, offset, length);
+        // Drop a ":prefix " the client may have sent
+        int end = offset + length;
+        int start = offset;
+        if (length > 0 && line[offset] == ':') {
+            for (int i = offset; i < end; i++) {
+                if (line[i] == ' ') {
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+        byte[] payload = Arrays.copyOfRange(line, start, end);
+
+        Request request = new Request(userId, payload);
+        if (shards.length == 1) {
+            shards[0].enqueue(request);
+        } else if (CommandParsing.isNicknameCommand(payload, 0, payload.length)) {
+            replicate(request);
+        } else {
+            int hash = CommandParsing.channelHash(payload, 0, payload.length);
+            shards[Math.floorMod(hash, shards.length)].enqueue(request);
         }
     }
 
+    /**
+     * Called by a transport once a client's connection has been closed.
+     * Connections closed by a shutdown are not quits: their users stay in
+     * the journal and come back offline after a restart.
+     */
+    void connectionClosed(int userId) {
+        openSockets.remove(userId);
+        metrics.recordConnectionClosed();
+        if (running) {
+            replicate(new Disconnection(userId));
+        }
+    }
 
-    private void dispatchBroadcast(Broadcast broadcast) {
-        if (broadcast == null) {
+    /**
+     * Queues a user-level task on every shard, in the same position relative
+     * to other replicated tasks on all of them, so every shard's copy of the
+     * user table goes through the same sequence of changes.
+     */
+    private void replicate(Task task) {
+        if (shards.length == 1) {
+            shards[0].enqueue(task);
             return;
         }
+        ReplicatedTask replicated = new ReplicatedTask(task);
+        synchronized (replicationLock) {
+            for (ModelShard shard : shards) {
+                shard.enqueue(replicated);
+            }
+        }
+    }
+
+
+
+    /**
+     * One partition of the server state: a model, the queue of tasks for it
+     * and the thread that applies them.
+     */
+    private final class ModelShard implements Runnable {
+        private final int index;
+        private final ServerModel model;
+        private final TaskQueue<Task> queue;
+        // Responses collected for each user during the current write batch;
+        // only touched by this shard's thread
+        private Map<Integer, List<ByteBuffer>> pendingOutput;
+        // Replicated tasks applied during the current write batch, each with
+        // the responses collected before it
+        private final List<ReplicatedTask> heldTasks;
+        private final List<Map<Integer, List<ByteBuffer>>> heldOutput;
+        // Null unless the configuration asks for a journal
+        private Journal journal;
+        // Numbers this shard's journal files; a snapshot file covers every
+        // generation before the one it names
+        private long generation;
+        private volatile boolean snapshotPending;
+        private volatile Thread thread;
+
+        public ModelShard(int index, ServerModel model) {
+            this.index = index;
+            this.model = model;
+            this.queue = TaskQueue.create(config);
+            this.pendingOutput = new LinkedHashMap<>();
+            this.heldTasks = new ArrayList<>();
+            this.heldOutput = new ArrayList<>();
+            this.journal = null;
+            this.generation = 0;
+            this.snapshotPending = false;
+            this.thread = null;
+        }
+
+        /**
+         * Loads this shard's snapshot file, if any, replays the journals it
+         * does not cover and opens the newest for appending. Must be called
+         * before the shard is started.
+         *
+         * @return the highest user ID ever handed out as far as this shard
+         *         knows, or -1 if there is none
+         */
+        public int recover() throws IOException {
+            long begin = System.nanoTime();
+            int highestUserId = -1;
+            Path snapshotFile = snapshotFile();
+            if (Files.exists(snapshotFile)) {
+                generation = SnapshotFile.load(snapshotFile, model);
+                model.publishSnapshot();
+                for (int userId : model.getSnapshot().getNicknameMap().keys()) {
+                    highestUserId = Math.max(highestUserId, userId);
+                }
+            }
+
+            int[] highestReplayed = {-1};
+            long records = 0;
+            List<Long> generations = journalGenerations();
+            for (long journalGeneration : generations) {
+                if (journalGeneration < generation) {
+                    // Left over from a snapshot saved just before a crash
+                    Files.deleteIfExists(journalFile(journalGeneration));
+                    continue;
+                }
+                if (journal != null) {
+                    journal.close();
+                }
+                journal = new Journal(journalFile(journalGeneration));
+                records += journal.replay((type, userId, payload) -> {
+                    if (type != Journal.RESTART) {
+                        highestReplayed[0] = Math.max(highestReplayed[0], userId);
+                    }
+                    replayedTask(type, userId, payload).getBroadcast(model);
+                });
+                generation = journalGeneration;
+            }
+            if (journal == null) {
+                journal = new Journal(journalFile(generation));
+            }
+
+            model.publishSnapshot();
+
+            System.out.printf("Restored model shard %d from %s and %d journal records in %d ms\n",
+                    index, Files.exists(snapshotFile) ? "a snapshot" : "no snapshot", records,
+                    (System.nanoTime() - begin) / 1_000_000);
+            // Users dropped since the last restart may have had higher IDs
+            // than any still registered
+            return Math.max(Math.max(highestUserId, highestReplayed[0]), model.getFirstOnlineUserId() - 1);
+        }
+
+        /**
+         * Drops the departed users and marks everyone else as offline,
+         * journaling both. Called once every shard has recovered, before the
+         * shard is started.
+         */
+        public void restart(List<Integer> departed, int firstOnlineUserId) throws IOException {
+            for (int userId : departed) {
+                Disconnection disconnection = new Disconnection(userId);
+                disconnection.getBroadcast(model);
+                disconnection.appendTo(journal);
+            }
+            Restart restart = new Restart(firstOnlineUserId);
+            restart.getBroadcast(model);
+            restart.appendTo(journal);
+            journal.commit();
+            model.publishSnapshot();
+        }
+
+        private Path snapshotFile() {
+            return config.getJournalDirectory().resolve("snapshot-" + index + ".bin");
+        }
 
-        Map<Integer, List<String>> responses = broadcast.getResponses(model);
-        for (int userId : responses.keySet()) {
+        private Path journalFile(long journalGeneration) {
+            return config.getJournalDirectory().resolve("journal-" + index + "-" + journalGeneration + ".log");
+        }
+
+        // The generations of this shard's journal files, oldest first
+        private List<Long> journalGenerations() throws IOException {
+            String prefix = "journal-" + index + "-";
+            List<Long> generations = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                    config.getJournalDirectory(), prefix + "*.log")) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        generations.add(Long.parseLong(
+                                name.substring(prefix.length(), name.length() - ".log".length())));
+                    } catch (NumberFormatException nfx) {
+                        // Not one of ours
+                    }
+                }
+            }
+            Collections.sort(generations);
+            return generations;
+        }
+
+        /**
+         * Once the journal has grown past the threshold, starts a new journal
+         * file and has the background writer save the state as of the old
+         * one's end. The old journal files are deleted once the snapshot is
+         * safely on disk. Called between batches, after the journal has been
+         * committed and the model's snapshot published.
+         */
+        private void maybeSaveSnapshot() {
+            if (journal == null || snapshotWriter == null || snapshotPending || journalFailed
+                    || journal.size() < config.getSnapshotThreshold()) {
+                return;
+            }
+            // Switch journals only once the new one is open, so a failure
+            // leaves this shard appending to the old one
+            Journal next;
+            try {
+                next = new Journal(journalFile(generation + 1));
+            } catch (IOException iox) {
+                iox.printStackTrace();
+                return;
+            }
             try {
-                Socket clientSocket = openSockets.get(userId);
-                PrintWriter pw = new PrintWriter(clientSocket.getOutputStream());
-                for (String response : responses.get(userId)) {
-                    pw.println(response);
-                    pw.flush();
-                    System.out.printf(
-                            "Response sent to user %d: \"%s\"\n",
-                            userId, response
-                    );
+                journal.close();
+            } catch (IOException iox) {
+                // Everything in it was committed with its batch
+                iox.printStackTrace();
+            }
+            journal = next;
+            generation++;
+
+            ModelSnapshot snapshot = model.getSnapshot();
+            long covered = generation;
+            snapshotPending = true;
+            try {
+                snapshotWriter.execute(() -> saveSnapshot(snapshot, covered));
+            } catch (RejectedExecutionException rx) {
+                // Server is shutting down; the journals still hold everything
+                snapshotPending = false;
+            }
+        }
+
+        // Runs on the snapshot writer thread
+        private void saveSnapshot(ModelSnapshot snapshot, long covered) {
+            try {
+                long begin = System.nanoTime();
+                // Only once the new snapshot is durable, rename included, may
+                // the journals it covers go
+                SnapshotFile.write(snapshot, covered, snapshotFile());
+                for (long journalGeneration : journalGenerations()) {
+                    if (journalGeneration < covered) {
+                        Files.deleteIfExists(journalFile(journalGeneration));
+                    }
                 }
-                pw.flush();
+                System.out.printf("Saved snapshot of model shard %d (%d channels) in %d ms\n",
+                        index, snapshot.getChannelMap().size(), (System.nanoTime() - begin) / 1_000_000);
             } catch (IOException iox) {
                 iox.printStackTrace();
+            } finally {
+                snapshotPending = false;
+            }
+        }
+
+        public void start() {
+            String name = shards.length == 1 ? "Model thread" : "Model thread " + index;
+            thread = new Thread(this, name);
+            thread.start();
+        }
+
+        public void interrupt() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        public void enqueue(Task task) {
+            metrics.recordTaskEnqueued();
+            queue.put(task);
+        }
+
+        /**
+         * The model thread's loop: blocks for the next task, then drains
+         * whatever else is already queued (up to the batch size), applies the
+         * whole batch to the model and hands the combined output to the writers.
+         */
+        @Override
+        public void run() {
+            List<Task> batch = new ArrayList<>(config.getBatchSize());
+            while (running || !queue.isEmpty()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException ix) {
+                    continue;
+                }
+                queue.drainTo(batch, config.getBatchSize() - 1);
+                for (Task task : batch) {
+                    try {
+                        task.applyTo(this);
+                    } catch (RuntimeException rx) {
+                        rx.printStackTrace();
+                    }
+                }
+                metrics.recordTasksProcessed(batch.size());
+                batch.clear();
+                flushOutput();
+                model.publishSnapshot();
+                maybeSaveSnapshot();
+            }
+
+            try {
+                if (journal != null) {
+                    journal.close();
+                }
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+
+            try {
+                if (serverSocket != null && !serverSocket.isClosed()) {
+                    serverSocket.close();
+                }
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+        }
+
+        /**
+         * Buffers a task in the journal if it changed the model, i.e. it
+         * produced a broadcast that is not an error.
+         */
+        private void journal(Task task, Broadcast broadcast) {
+            if (journal != null && broadcast != null && !broadcast.isError()) {
+                task.appendTo(journal);
+            }
+        }
+
+        /**
+         * Makes the tasks journaled so far durable. Runs before any of their
+         * responses are handed to the writers, so no client ever sees the
+         * effect of a change that a crash could still lose. If the write
+         * fails, the server stops and sends nothing more.
+         *
+         * @return whether responses may be sent
+         */
+        private boolean commitJournal() {
+            if (journal == null || journalFailed) {
+                return !journalFailed;
+            }
+            try {
+                journal.commit();
+                return true;
+            } catch (IOException iox) {
+                iox.printStackTrace();
+                System.err.printf("Journal of model shard %d could not be written; stopping the server%n", index);
+                journalFailed = true;
+                stop();
+                return false;
+            }
+        }
+
+        /**
+         * Adds a broadcast's responses to the current write batch.
+         */
+        private void dispatchBroadcast(Broadcast broadcast) {
+            dispatchBroadcast(broadcast, pendingOutput);
+        }
+
+        private void dispatchBroadcast(Broadcast broadcast, Map<Integer, List<ByteBuffer>> pendingOutput) {
+            if (broadcast == null) {
+                return;
+            }
+
+            boolean logged = log.isEnabled(ServerLog.Event.RESPONSE_SENT);
+            int recipients = 0;
+            for (Broadcast.Delivery delivery : broadcast.getDeliveries()) {
+                recipients += delivery.getRecipients().size();
+                for (String recipient : delivery.getRecipients()) {
+                    int userId = model.getUserId(recipient);
+                    List<ByteBuffer> output = pendingOutput.get(userId);
+                    if (output == null) {
+                        output = new ArrayList<>();
+                        pendingOutput.put(userId, output);
+                    }
+                    output.add(delivery.getEncoded());
+                    if (logged) {
+                        log.log(ServerLog.Event.RESPONSE_SENT, userId, delivery.getLine());
+                    }
+                }
+            }
+            metrics.recordFanOut(recipients);
+        }
+
+        /**
+         * Sets the responses collected so far aside until the replicated task
+         * applied after them has been committed with the rest of the batch.
+         */
+        private void hold(ReplicatedTask task) {
+            heldTasks.add(task);
+            heldOutput.add(pendingOutput);
+            pendingOutput = new LinkedHashMap<>();
+        }
+
+        /**
+         * Commits the batch, then hands each user's batched responses to their
+         * connection in one go, so the writer stage can send them with a
+         * single write. The merged response of each replicated task in the
+         * batch goes out between the responses before and after it.
+         */
+        private void flushOutput() {
+            boolean committed = commitJournal();
+            for (int i = 0; i < heldTasks.size(); i++) {
+                if (committed) {
+                    send(heldOutput.get(i));
+                }
+                heldTasks.get(i).arrive(this, committed);
+            }
+            heldTasks.clear();
+            heldOutput.clear();
+            if (committed) {
+                send(pendingOutput);
+            }
+            pendingOutput.clear();
+        }
+
+        private void send(Map<Integer, List<ByteBuffer>> output) {
+            for (Map.Entry<Integer, List<ByteBuffer>> entry : output.entrySet()) {
+                ClientConnection connection = openSockets.get(entry.getKey());
+                if (connection != null) {
+                    connection.send(entry.getValue());
+                }
             }
         }
     }
 
 
 
-    private final class ConnectionWorker implements Runnable {
+    /**
+     * A blocking client socket. Responses are queued by the model thread and
+     * written by a drain task on the worker pool, at most one at a time per
+     * connection, so a client that stops reading only ever stalls its own
+     * writer.
+     */
+    private static final class SocketConnection implements ClientConnection {
+        private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+        private final Socket clientSocket;
+        private final OutboundQueue outbound;
+        private final Executor writerPool;
+        private final ServerMetrics metrics;
+        private final AtomicBoolean writing;
+        // Coalesces queued lines into as few socket writes as possible;
+        // only used by the active drain task
+        private final byte[] writeBuffer;
+
+        public SocketConnection(
+                Socket clientSocket, OutboundQueue outbound,
+                Executor writerPool, ServerMetrics metrics
+        ) {
+            this.clientSocket = clientSocket;
+            this.outbound = outbound;
+            this.writerPool = writerPool;
+            this.metrics = metrics;
+            this.writing = new AtomicBoolean();
+            this.writeBuffer = new byte[WRITE_BUFFER_SIZE];
+        }
+
+        @Override
+        public void send(List<ByteBuffer> responses) {
+            for (ByteBuffer response : responses) {
+                if (!outbound.offer(response.duplicate())) {
+                    // Slow consumer; the reader sees the closed socket and disconnects
+                    closeQuietly();
+                    return;
+                }
+            }
+            scheduleWrite();
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+
+        @Override
+        public void close() throws IOException {
+            clientSocket.close();
+        }
+
+        private void scheduleWrite() {
+            if (writing.compareAndSet(false, true)) {
+                try {
+                    writerPool.execute(this::drain);
+                } catch (RejectedExecutionException rx) {
+                    // Server is shutting down
+                    writing.set(false);
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                OutputStream out = clientSocket.getOutputStream();
+                int buffered = 0;
+                int lines = 0;
+                ByteBuffer bytes;
+                while ((bytes = outbound.poll()) != null) {
+                    int offset = bytes.arrayOffset() + bytes.position();
+                    int length = bytes.remaining();
+                    if (buffered + length > writeBuffer.length && buffered > 0) {
+                        out.write(writeBuffer, 0, buffered);
+                        metrics.recordWrite(lines, buffered);
+                        buffered = 0;
+                        lines = 0;
+                    }
+                    if (length > writeBuffer.length) {
+                        out.write(bytes.array(), offset, length);
+                        metrics.recordWrite(1, length);
+                        continue;
+                    }
+                    System.arraycopy(bytes.array(), offset, writeBuffer, buffered, length);
+                    buffered += length;
+                    lines++;
+                }
+                if (buffered > 0) {
+                    out.write(writeBuffer, 0, buffered);
+                    metrics.recordWrite(lines, buffered);
+                }
+                out.flush();
+            } catch (IOException iox) {
+                closeQuietly();
+            } finally {
+                writing.set(false);
+            }
+            // Lines queued after the last poll() but before writing was cleared
+            if (!outbound.isEmpty() && !clientSocket.isClosed()) {
+                scheduleWrite();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                clientSocket.close();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+            }
+        }
+    }
+
+
+
+    private final class ConnectionWorker implements Runnable, LineReader.LineHandler {
         private final int userId;
         private final Socket clientSocket;
 
@@ -169,45 +884,144 @@ final class ServerBackend implements Runnable {
 
         @Override
         public void run() {
-            try (
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(clientSocket.getInputStream())
-                    )) {
+            LineReader reader = new LineReader(READ_BUFFER_SIZE, MAX_LINE_LENGTH);
+            try (InputStream in = clientSocket.getInputStream()) {
                 while (running && !clientSocket.isClosed()) {
-                    String line = reader.readLine();
-                    if (line != null) {
-                        System.out.printf(
-                                "Request received from user %d: " +
-                                        "\"%s\"\n",
-                                userId, line
-                        );
-                        String payload;
-                        if (line.startsWith(":")) {
-                            int index = line.indexOf(' ');
-                            payload = line.substring(index + 1);
-                        } else {
-                            payload = line;
-                        }
-                        Request request = new Request(userId, payload);
-                        taskQueue.add(request);
-                    } else {
+                    if (reader.read(in, this) < 0) {
                         clientSocket.close();
-                        taskQueue.add(new Disconnection(userId));
                     }
                 }
             } catch (IOException iox) {
-                iox.printStackTrace();
-                taskQueue.add(new Disconnection(userId));
+                // Expected once the writer or a shutdown has closed the socket
+                if (!clientSocket.isClosed()) {
+                    iox.printStackTrace();
+                }
             } finally {
-                openSockets.remove(userId);
+                // However the loop ended, including the writer closing the
+                // socket between reads, the user is deregistered exactly once
+                connectionClosed(userId);
             }
         }
+
+        @Override
+        public void lineReceived(byte[] line, int offset, int length) {
+            requestReceived(userId, line, offset, length);
+        }
     }
 
 
 
     private interface Task {
-        Broadcast getBroadcast();
+        Broadcast getBroadcast(ServerModel model);
+
+        default void applyTo(ModelShard shard) {
+            Broadcast broadcast = getBroadcast(shard.model);
+            shard.journal(this, broadcast);
+            shard.dispatchBroadcast(broadcast);
+        }
+
+        /**
+         * Writes the record that replays this task, if it changes the model.
+         */
+        default void appendTo(Journal journal) {
+        }
+    }
+
+    /**
+     * Rebuilds the task a journal record describes.
+     */
+    private Task replayedTask(byte type, int userId, byte[] payload) {
+        switch (type) {
+            case Journal.REGISTRATION:
+                return new Registration(userId);
+            case Journal.DISCONNECTION:
+                return new Disconnection(userId);
+            case Journal.REQUEST:
+                return new Request(userId, payload);
+            case Journal.RESTART:
+                return new Restart(userId);
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    /**
+     * A user-level task (connection, disconnection or nickname change) that
+     * runs on every shard.
+     *
+     * Each shard applies it to its own model at the same point in its stream
+     * of replicated tasks and journals it with the rest of its batch. Once
+     * the batch is committed, the shard sends the output from before the
+     * task and arrives here. The last shard to arrive merges all the shards'
+     * broadcasts, deduplicating recipients who share channels on several
+     * shards, and sends the result while the others wait, so nobody sees a
+     * later response ahead of it.
+     */
+    private final class ReplicatedTask implements Task {
+        private final Task task;
+        private final Broadcast[] results;
+        private final AtomicInteger remaining;
+        private final CountDownLatch sent;
+        // Set by a shard whose journal failed; the merged response is dropped
+        private volatile boolean lost;
+
+        public ReplicatedTask(Task task) {
+            this.task = task;
+            this.results = new Broadcast[shards.length];
+            this.remaining = new AtomicInteger(shards.length);
+            this.sent = new CountDownLatch(1);
+            this.lost = false;
+        }
+
+        @Override
+        public Broadcast getBroadcast(ServerModel model) {
+            return task.getBroadcast(model);
+        }
+
+        @Override
+        public void applyTo(ModelShard shard) {
+            try {
+                results[shard.index] = task.getBroadcast(shard.model);
+                shard.journal(task, results[shard.index]);
+            } finally {
+                shard.hold(this);
+            }
+        }
+
+        /**
+         * Called by each shard once the batch holding this task has been
+         * committed, or has failed to be.
+         */
+        public void arrive(ModelShard shard, boolean committed) {
+            if (!committed) {
+                lost = true;
+            }
+            if (remaining.decrementAndGet() == 0) {
+                try {
+                    if (!lost) {
+                        Map<Integer, List<ByteBuffer>> output = new LinkedHashMap<>();
+                        shard.dispatchBroadcast(Broadcast.merge(results), output);
+                        shard.send(output);
+                    }
+                } finally {
+                    sent.countDown();
+                }
+                return;
+            }
+
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    sent.await();
+                    break;
+                } catch (InterruptedException ix) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
@@ -221,8 +1035,16 @@ final class ServerBackend implements Runnable {
         }
 
         @Override
-        public Broadcast getBroadcast() {
-            return model.registerUser(userId);
+        public Broadcast getBroadcast(ServerModel model) {
+            long begin = System.nanoTime();
+            Broadcast broadcast = model.registerUser(userId);
+            metrics.recordModelTime(Registration.class, System.nanoTime() - begin);
+            return broadcast;
+        }
+
+        @Override
+        public void appendTo(Journal journal) {
+            journal.append(Journal.REGISTRATION, userId, NO_PAYLOAD);
         }
     }
 
@@ -237,8 +1059,39 @@ final class ServerBackend implements Runnable {
         }
 
         @Override
-        public Broadcast getBroadcast() {
-            return model.deregisterUser(userId);
+        public Broadcast getBroadcast(ServerModel model) {
+            long begin = System.nanoTime();
+            Broadcast broadcast = model.deregisterUser(userId);
+            metrics.recordModelTime(Disconnection.class, System.nanoTime() - begin);
+            return broadcast;
+        }
+
+        @Override
+        public void appendTo(Journal journal) {
+            journal.append(Journal.DISCONNECTION, userId, NO_PAYLOAD);
+        }
+    }
+
+    /**
+     * Marks the users of the previous run as offline at startup. Only ever
+     * applied during recovery and replay, never queued.
+     */
+    private final class Restart implements Task {
+        private final int firstOnlineUserId;
+
+        public Restart(int firstOnlineUserId) {
+            this.firstOnlineUserId = firstOnlineUserId;
+        }
+
+        @Override
+        public Broadcast getBroadcast(ServerModel model) {
+            model.markUsersOffline(firstOnlineUserId);
+            return null;
+        }
+
+        @Override
+        public void appendTo(Journal journal) {
+            journal.append(Journal.RESTART, firstOnlineUserId, NO_PAYLOAD);
         }
     }
 
@@ -247,23 +1100,38 @@ final class ServerBackend implements Runnable {
      */
     private final class Request implements Task {
         private final int userId;
-        private final String payload;
+        // The command line as read, without any ":prefix "
+        private final byte[] payload;
 
-        public Request(int userId, String payload) {
+        public Request(int userId, byte[] payload) {
             this.userId = userId;
             this.payload = payload;
         }
 
         @Override
-        public Broadcast getBroadcast() {
+        public Broadcast getBroadcast(ServerModel model) {
+            long begin = System.nanoTime();
             String sender = model.getNickname(userId);
             if (sender == null) {
-                System.err.println("Nickname for given user ID not found");
+                log.log(ServerLog.Event.UNKNOWN_USER, userId);
+                return null;
+            }
+            Command command = CommandParsing.parse(userId, sender, payload, 0, payload.length);
+            if (command == null) {
+                log.log(ServerLog.Event.INVALID_COMMAND, userId);
+                metrics.recordModelTime(Request.class, System.nanoTime() - begin);
                 return null;
             }
-            Command command = CommandParser.parse(userId, sender, payload);
-            assert command != null;
-            return command.updateServerModel(model);
+            Broadcast broadcast = command.updateServerModel(model);
+            metrics.recordModelTime(command.getClass(), System.nanoTime() - begin);
+            return broadcast;
+        }
+
+        @Override
+        public void appendTo(Journal journal) {
+            if (!CommandParsing.isMessageCommand(payload, 0, payload.length)) {
+                journal.append(Journal.REQUEST, userId, payload);
+            }
         }
     }
 }
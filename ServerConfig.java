@@ -0,0 +1,419 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+/**
+ * Startup options for {@link ServerBackend}.
+ *
+ * Every option can be set from a {@code chatserver.*} system property so the
+ * server can be reconfigured without code changes, e.g.
+ * {@code java -Dchatserver.transport=SELECTOR MainServer}.
+ */
+final class ServerConfig {
+
+    /**
+     * How client sockets are serviced.
+     */
+    enum Transport {
+        /** One blocking {@code ConnectionWorker} per client socket. */
+        BLOCKING,
+        /** A single selector thread multiplexing non-blocking channels. */
+        SELECTOR
+    }
+
+    /**
+     * What kind of threads run blocking connection workers and their writes.
+     */
+    enum Threading {
+        /** A cached pool of platform threads. */
+        PLATFORM,
+        /** One virtual thread per task (JDK 21+). */
+        VIRTUAL
+    }
+
+    /**
+     * What to do when a client's outbound queue is full.
+     */
+    enum OverflowPolicy {
+        /** Discard the oldest queued line to make room. */
+        DROP_OLDEST,
+        /** Disconnect the slow client. */
+        DISCONNECT
+    }
+
+    /**
+     * Which {@link TaskQueue} carries tasks to the model thread.
+     */
+    enum TaskQueueType {
+        /** An unbounded {@link LinkedTaskQueue}. */
+        LINKED,
+        /** A bounded, lock-free {@link RingTaskQueue}. */
+        RING
+    }
+
+    /**
+     * How a {@link RingTaskQueue} waits when it is empty or full.
+     */
+    enum WaitStrategy {
+        /** Spin on the CPU; lowest latency, burns a core. */
+        BUSY_SPIN,
+        /** Spin briefly, then yield the CPU between checks. */
+        YIELD,
+        /** Park the consumer until a producer wakes it. */
+        PARK
+    }
+
+    private Transport transport;
+    private Threading threading;
+    private int outboundQueueCapacity;
+    private OverflowPolicy overflowPolicy;
+    private int batchSize;
+    private TaskQueueType taskQueue;
+    private int taskQueueCapacity;
+    private WaitStrategy waitStrategy;
+    private int modelShards;
+    private int metricsPort;
+    private ServerLog.Level logLevel;
+    private int logSampleRate;
+    private int logBufferSize;
+    private Path journalDirectory;
+    private long snapshotThreshold;
+    private int historySize;
+    private long historyMemory;
+    private long historyMaxAge;
+
+    public ServerConfig() {
+        transport = Transport.BLOCKING;
+        threading = Threading.PLATFORM;
+        outboundQueueCapacity = 1024;
+        overflowPolicy = OverflowPolicy.DISCONNECT;
+        batchSize = 256;
+        taskQueue = TaskQueueType.LINKED;
+        taskQueueCapacity = 64 * 1024;
+        waitStrategy = WaitStrategy.PARK;
+        modelShards = 1;
+        metricsPort = 0;
+        logLevel = ServerLog.Level.DEBUG;
+        logSampleRate = 1;
+        logBufferSize = 8 * 1024;
+        journalDirectory = null;
+        snapshotThreshold = 64L * 1024 * 1024;
+        historySize = 0;
+        historyMemory = 16L * 1024 * 1024;
+        historyMaxAge = 0;
+    }
+
+    /**
+     * Builds a configuration from the {@code chatserver.*} system properties,
+     * falling back to the defaults for anything left unset.
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        String transport = System.getProperty("chatserver.transport");
+        if (transport != null) {
+            config.setTransport(Transport.valueOf(transport.trim().toUpperCase()));
+        }
+        String threading = System.getProperty("chatserver.threads");
+        if (threading != null) {
+            config.setThreading(Threading.valueOf(threading.trim().toUpperCase()));
+        }
+        config.setOutboundQueueCapacity(Integer.getInteger(
+                "chatserver.outboundQueueCapacity", config.getOutboundQueueCapacity()));
+        String overflowPolicy = System.getProperty("chatserver.overflowPolicy");
+        if (overflowPolicy != null) {
+            config.setOverflowPolicy(OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase()));
+        }
+        config.setBatchSize(Integer.getInteger("chatserver.batchSize", config.getBatchSize()));
+        String taskQueue = System.getProperty("chatserver.taskQueue");
+        if (taskQueue != null) {
+            config.setTaskQueue(TaskQueueType.valueOf(taskQueue.trim().toUpperCase()));
+        }
+        config.setTaskQueueCapacity(Integer.getInteger(
+                "chatserver.taskQueueCapacity", config.getTaskQueueCapacity()));
+        String waitStrategy = System.getProperty("chatserver.waitStrategy");
+        if (waitStrategy != null) {
+            config.setWaitStrategy(WaitStrategy.valueOf(waitStrategy.trim().toUpperCase()));
+        }
+        config.setModelShards(Integer.getInteger("chatserver.modelShards", config.getModelShards()));
+        config.setMetricsPort(Integer.getInteger("chatserver.metricsPort", config.getMetricsPort()));
+        String logLevel = System.getProperty("chatserver.logLevel");
+        if (logLevel != null) {
+            config.setLogLevel(ServerLog.Level.valueOf(logLevel.trim().toUpperCase()));
+        }
+        config.setLogSampleRate(Integer.getInteger("chatserver.logSampleRate", config.getLogSampleRate()));
+        config.setLogBufferSize(Integer.getInteger("chatserver.logBufferSize", config.getLogBufferSize()));
+        String journalDirectory = System.getProperty("chatserver.journalDir");
+        if (journalDirectory != null && !journalDirectory.trim().isEmpty()) {
+            config.setJournalDirectory(Paths.get(journalDirectory.trim()));
+        }
+        config.setSnapshotThreshold(Long.getLong("chatserver.snapshotThreshold", config.getSnapshotThreshold()));
+        config.setHistorySize(Integer.getInteger("chatserver.historySize", config.getHistorySize()));
+        config.setHistoryMemory(Long.getLong("chatserver.historyMemory", config.getHistoryMemory()));
+        config.setHistoryMaxAge(Long.getLong("chatserver.historyMaxAge", config.getHistoryMaxAge()));
+        return config;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public ServerConfig setTransport(Transport transport) {
+        if (transport == null) {
+            throw new NullPointerException();
+        }
+        this.transport = transport;
+        return this;
+    }
+
+    public Threading getThreading() {
+        return threading;
+    }
+
+    public ServerConfig setThreading(Threading threading) {
+        if (threading == null) {
+            throw new NullPointerException();
+        }
+        this.threading = threading;
+        return this;
+    }
+
+    /**
+     * The most response lines that may wait to be written to one client.
+     */
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public ServerConfig setOutboundQueueCapacity(int outboundQueueCapacity) {
+        if (outboundQueueCapacity <= 0) {
+            throw new IllegalArgumentException("Outbound queue capacity must be positive");
+        }
+        this.outboundQueueCapacity = outboundQueueCapacity;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public ServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new NullPointerException();
+        }
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * The most tasks the model thread drains from its queue at once. Every
+     * client's responses to a batch are handed to the writers together, so
+     * this is also the window over which writes are coalesced. The model
+     * never waits for a batch to fill, so larger values cost no latency.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public ServerConfig setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be at least one task");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public TaskQueueType getTaskQueue() {
+        return taskQueue;
+    }
+
+    public ServerConfig setTaskQueue(TaskQueueType taskQueue) {
+        if (taskQueue == null) {
+            throw new NullPointerException();
+        }
+        this.taskQueue = taskQueue;
+        return this;
+    }
+
+    /**
+     * The number of slots in a {@code RING} task queue; a power of two.
+     * Producers wait while it is full.
+     */
+    public int getTaskQueueCapacity() {
+        return taskQueueCapacity;
+    }
+
+    public ServerConfig setTaskQueueCapacity(int taskQueueCapacity) {
+        if (taskQueueCapacity < 2 || Integer.bitCount(taskQueueCapacity) != 1) {
+            throw new IllegalArgumentException("Task queue capacity must be a power of two");
+        }
+        this.taskQueueCapacity = taskQueueCapacity;
+        return this;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public ServerConfig setWaitStrategy(WaitStrategy waitStrategy) {
+        if (waitStrategy == null) {
+            throw new NullPointerException();
+        }
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * How many model threads the channels are partitioned across.
+     */
+    public int getModelShards() {
+        return modelShards;
+    }
+
+    public ServerConfig setModelShards(int modelShards) {
+        if (modelShards <= 0) {
+            throw new IllegalArgumentException("There must be at least one model shard");
+        }
+        this.modelShards = modelShards;
+        return this;
+    }
+
+    /**
+     * The loopback port serving the plain-text metrics, or 0 for none.
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public ServerConfig setMetricsPort(int metricsPort) {
+        if (metricsPort < 0 || metricsPort > 65535) {
+            throw new IllegalArgumentException("Metrics port must be between 0 and 65535");
+        }
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    /**
+     * The least severe events logged. Every request and response is logged
+     * at {@code DEBUG}.
+     */
+    public ServerLog.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public ServerConfig setLogLevel(ServerLog.Level logLevel) {
+        if (logLevel == null) {
+            throw new NullPointerException();
+        }
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    /**
+     * Logs about one in this many requests and responses.
+     */
+    public int getLogSampleRate() {
+        return logSampleRate;
+    }
+
+    public ServerConfig setLogSampleRate(int logSampleRate) {
+        if (logSampleRate <= 0) {
+            throw new IllegalArgumentException("Log sample rate must be positive");
+        }
+        this.logSampleRate = logSampleRate;
+        return this;
+    }
+
+    /**
+     * The number of log events that may wait to be written; a power of two.
+     * Events logged while it is full are dropped.
+     */
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    public ServerConfig setLogBufferSize(int logBufferSize) {
+        if (logBufferSize < 2 || Integer.bitCount(logBufferSize) != 1) {
+            throw new IllegalArgumentException("Log buffer size must be a power of two");
+        }
+        this.logBufferSize = logBufferSize;
+        return this;
+    }
+
+    /**
+     * Where each model shard keeps the journal it rebuilds its state from at
+     * startup, or null to keep the state in memory only.
+     */
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public ServerConfig setJournalDirectory(Path journalDirectory) {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    /**
+     * How many bytes a shard's journal may grow to before the shard's state
+     * is saved to a snapshot file and the journal started afresh, or 0 to
+     * never take snapshots.
+     */
+    public long getSnapshotThreshold() {
+        return snapshotThreshold;
+    }
+
+    public ServerConfig setSnapshotThreshold(long snapshotThreshold) {
+        if (snapshotThreshold < 0) {
+            throw new IllegalArgumentException("Snapshot threshold must not be negative");
+        }
+        this.snapshotThreshold = snapshotThreshold;
+        return this;
+    }
+
+    /**
+     * How many recent messages each channel keeps to replay to users who
+     * join it, or 0 to keep none.
+     */
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    public ServerConfig setHistorySize(int historySize) {
+        if (historySize < 0) {
+            throw new IllegalArgumentException("History size must not be negative");
+        }
+        this.historySize = historySize;
+        return this;
+    }
+
+    /**
+     * How many bytes the message history of all channels may take up,
+     * shared evenly among the model shards.
+     */
+    public long getHistoryMemory() {
+        return historyMemory;
+    }
+
+    public ServerConfig setHistoryMemory(long historyMemory) {
+        if (historyMemory <= 0) {
+            throw new IllegalArgumentException("History memory must be positive");
+        }
+        this.historyMemory = historyMemory;
+        return this;
+    }
+
+    /**
+     * How many milliseconds a message stays in the replayed history, or 0
+     * for as long as it is kept.
+     */
+    public long getHistoryMaxAge() {
+        return historyMaxAge;
+    }
+
+    public ServerConfig setHistoryMaxAge(long historyMaxAge) {
+        if (historyMaxAge < 0) {
+            throw new IllegalArgumentException("History maximum age must not be negative");
+        }
+        this.historyMaxAge = historyMaxAge;
+        return this;
+    }
+}
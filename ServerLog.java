@@ -0,0 +1,338 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * An asynchronous log for the server's per-message events.
+ *
+ * Logging threads copy the raw fields of an event into a preallocated ring
+ * of records and return; a background thread formats the records and hands
+ * them to a {@link Sink}. The ring is claimed the same way as in
+ * {@link RingTaskQueue}, so loggers only contend on one CAS and nothing is
+ * allocated per event. An event below the configured level, or not picked
+ * by sampling, costs a comparison. When the ring is full the event is
+ * dropped rather than stalling the caller, and the drop is reported later.
+ */
+final class ServerLog implements Runnable {
+
+    private static final int SPINS_BEFORE_PARK = 100;
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+    // Longer byte texts are cut short, so no slot holds on to a huge buffer
+    private static final int MAX_COPIED_BYTES = 4 * 1024;
+
+    /**
+     * Log levels, least severe first.
+     */
+    enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    /**
+     * The kinds of event logged, each with its level and message.
+     */
+    enum Event {
+        REQUEST_RECEIVED(Level.DEBUG, true) {
+            @Override
+            void format(StringBuilder out, int userId, String text) {
+                out.append("Request received from user ").append(userId)
+                        .append(": \"").append(text).append('"');
+            }
+        },
+        RESPONSE_SENT(Level.DEBUG, true) {
+            @Override
+            void format(StringBuilder out, int userId, String text) {
+                out.append("Response sent to user ").append(userId)
+                        .append(": \"").append(text).append('"');
+            }
+        },
+        UNKNOWN_USER(Level.WARN, false) {
+            @Override
+            void format(StringBuilder out, int userId, String text) {
+                out.append("Nickname for given user ID not found");
+            }
+        },
+        INVALID_COMMAND(Level.WARN, false) {
+            @Override
+            void format(StringBuilder out, int userId, String text) {
+                out.append("Invalid command from user ").append(userId);
+            }
+        };
+
+        private final Level level;
+        // Per-message traffic, thinned out by the sample rate
+        private final boolean sampled;
+
+        Event(Level level, boolean sampled) {
+            this.level = level;
+            this.sampled = sampled;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        abstract void format(StringBuilder out, int userId, String text);
+    }
+
+    /**
+     * Where formatted log lines go. Only called from the log's own thread.
+     */
+    interface Sink {
+        void write(Level level, String line);
+    }
+
+    /**
+     * Writes errors and warnings to standard error and everything else to
+     * standard output, looking the streams up on every call so they can be
+     * redirected while the server runs.
+     */
+    static final Sink CONSOLE = (level, line) -> {
+        if (level.compareTo(Level.WARN) >= 0) {
+            System.err.println(line);
+        } else {
+            System.out.println(line);
+        }
+    };
+
+    private final Level level;
+    private final int sampleRate;
+    private final Sink sink;
+
+    private final Record[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail;
+    // Only touched by the log thread
+    private long head;
+    private final LongAdder dropped;
+
+    private volatile Thread thread;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    public ServerLog(ServerConfig config) {
+        this(config.getLogLevel(), config.getLogSampleRate(), config.getLogBufferSize(), CONSOLE);
+    }
+
+    /**
+     * @param sampleRate   log about one in this many sampled events
+     * @param bufferSize   records the ring holds; a power of two
+     */
+    public ServerLog(Level level, int sampleRate, int bufferSize, Sink sink) {
+        if (level == null || sink == null) {
+            throw new NullPointerException();
+        }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        if (bufferSize < 2 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("Buffer size must be a power of two");
+        }
+        this.level = level;
+        this.sampleRate = sampleRate;
+        this.sink = sink;
+        this.records = new Record[bufferSize];
+        this.sequences = new AtomicLongArray(bufferSize);
+        for (int i = 0; i < bufferSize; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+        this.mask = bufferSize - 1;
+        this.tail = new AtomicLong();
+        this.head = 0;
+        this.dropped = new LongAdder();
+    }
+
+    /**
+     * Starts the background thread that writes the log.
+     */
+    public void start() {
+        Thread writer = new Thread(this, "Log writer");
+        writer.setDaemon(true);
+        thread = writer;
+        writer.start();
+    }
+
+    /**
+     * Writes whatever is already logged, then stops the background thread.
+     */
+    public void close() {
+        closed = true;
+        Thread writer = thread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns whether events of this kind are logged at all; lets callers
+     * skip work done only to build an event.
+     */
+    public boolean isEnabled(Event event) {
+        return event.level.compareTo(level) >= 0;
+    }
+
+    public void log(Event event, int userId) {
+        log(event, userId, null, null, 0, 0);
+    }
+
+    public void log(Event event, int userId, String text) {
+        log(event, userId, text, null, 0, 0);
+    }
+
+    /**
+     * Logs an event whose text is the UTF-8 bytes {@code line[offset,
+     * offset + length)}. The bytes are copied, so the caller may reuse them.
+     */
+    public void log(Event event, int userId, byte[] line, int offset, int length) {
+        log(event, userId, null, line, offset, length);
+    }
+
+    /**
+     * The number of events dropped so far because the ring was full.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void log(Event event, int userId, String text, byte[] bytes, int offset, int length) {
+        if (!isEnabled(event) || closed) {
+            return;
+        }
+        if (event.sampled && sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    records[index].set(event, userId, text, bytes, offset, length);
+                    sequences.set(index, position + 1);
+                    if (writerParked) {
+                        LockSupport.unpark(thread);
+                    }
+                    return;
+                }
+            } else if (difference < 0) {
+                dropped.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * The log thread's loop: formats and writes records as they are
+     * published, parking when there are none.
+     */
+    @Override
+    public void run() {
+        StringBuilder out = new StringBuilder(256);
+        long reportedDrops = 0;
+        int idle = 0;
+        while (true) {
+            long position = head;
+            int index = (int) position & mask;
+            if (sequences.get(index) == position + 1) {
+                Record record = records[index];
+                Level recordLevel = record.event.level;
+                out.setLength(0);
+                record.event.format(out, record.userId, record.getText());
+                record.clear();
+                sequences.set(index, position + records.length);
+                head = position + 1;
+                write(recordLevel, out.toString());
+                idle = 0;
+                continue;
+            }
+
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                write(Level.WARN, (drops - reportedDrops) + " log events dropped; the log buffer was full");
+                reportedDrops = drops;
+            }
+            if (closed) {
+                return;
+            }
+            if (idle++ < SPINS_BEFORE_PARK) {
+                Thread.onSpinWait();
+            } else {
+                // Loggers check writerParked after publishing, so re-check
+                // for a record only once the flag is visible
+                writerParked = true;
+                if (sequences.get((int) head & mask) != head + 1 && !closed) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    private void write(Level recordLevel, String line) {
+        try {
+            sink.write(recordLevel, line);
+        } catch (RuntimeException rx) {
+            rx.printStackTrace();
+        }
+    }
+
+
+    /**
+     * One slot of the ring. Text is kept as given, or as a private copy of
+     * the given bytes, which is reused by later events in the same slot.
+     */
+    private static final class Record {
+        private Event event;
+        private int userId;
+        private String text;
+        private byte[] bytes;
+        private int length;
+        private boolean truncated;
+
+        public Record() {
+            this.bytes = new byte[128];
+        }
+
+        public void set(Event event, int userId, String text, byte[] line, int offset, int length) {
+            this.event = event;
+            this.userId = userId;
+            this.text = text;
+            if (line != null) {
+                truncated = length > MAX_COPIED_BYTES;
+                if (truncated) {
+                    length = MAX_COPIED_BYTES;
+                }
+                if (bytes.length < length) {
+                    bytes = new byte[Math.max(length, Math.min(bytes.length * 2, MAX_COPIED_BYTES))];
+                }
+                System.arraycopy(line, offset, bytes, 0, length);
+                this.length = length;
+            } else {
+                this.length = -1;
+            }
+        }
+
+        public String getText() {
+            if (length >= 0) {
+                String decoded = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                return truncated ? decoded + "..." : decoded;
+            }
+            return text;
+        }
+
+        public void clear() {
+            event = null;
+            text = null;
+        }
+    }
+}
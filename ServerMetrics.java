@@ -0,0 +1,247 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+
+/**
+ * Counters and histograms updated on the server's hot paths.
+ *
+ * Writers from many threads bump these concurrently, so each counter is a
+ * {@link LongAdder} rather than a single contended atomic, and each
+ * distribution a lock-free {@link Histogram}. Readers see a recent, not an
+ * atomic, view.
+ */
+final class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final String PREFIX = "chatserver_";
+
+    private final LongAdder linesWritten;
+    private final LongAdder bytesWritten;
+    private final LongAdder writes;
+    private final LongAdder tasksEnqueued;
+    private final LongAdder tasksProcessed;
+    private final LongAdder connectionsOpened;
+    private final LongAdder connectionsClosed;
+    // Recipients per broadcast
+    private final Histogram fanOut;
+    // Model-thread time per task, by task or command class
+    private final ConcurrentMap<String, Histogram> modelTime;
+
+    public ServerMetrics() {
+        linesWritten = new LongAdder();
+        bytesWritten = new LongAdder();
+        writes = new LongAdder();
+        tasksEnqueued = new LongAdder();
+        tasksProcessed = new LongAdder();
+        connectionsOpened = new LongAdder();
+        connectionsClosed = new LongAdder();
+        fanOut = new Histogram();
+        modelTime = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Records one write to a client socket that completed {@code lines}
+     * response lines.
+     */
+    public void recordWrite(int lines, long bytes) {
+        writes.increment();
+        linesWritten.add(lines);
+        bytesWritten.add(bytes);
+    }
+
+    public void recordTaskEnqueued() {
+        tasksEnqueued.increment();
+    }
+
+    public void recordTasksProcessed(int count) {
+        tasksProcessed.add(count);
+    }
+
+    public void recordConnectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void recordConnectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * Records the number of recipients of one broadcast.
+     */
+    public void recordFanOut(int recipients) {
+        fanOut.record(recipients);
+    }
+
+    /**
+     * Records the model-thread time spent on one task of the given type.
+     */
+    public void recordModelTime(Class<?> type, long nanos) {
+        Histogram histogram = modelTime.get(type.getSimpleName());
+        if (histogram == null) {
+            histogram = modelTime.computeIfAbsent(type.getSimpleName(), name -> new Histogram());
+        }
+        histogram.record(nanos);
+    }
+
+    @Override
+    public long getLinesWritten() {
+        return linesWritten.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * The number of write calls made to client sockets.
+     */
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * The average number of response lines carried by one socket write, a
+     * measure of how well writes are being coalesced.
+     */
+    @Override
+    public double getLinesPerWrite() {
+        long count = writes.sum();
+        return count == 0 ? 0.0 : (double) linesWritten.sum() / count;
+    }
+
+    /**
+     * Tasks put on the model queues; a task replicated to every shard counts
+     * once per shard.
+     */
+    @Override
+    public long getTasksEnqueued() {
+        return tasksEnqueued.sum();
+    }
+
+    @Override
+    public long getTasksProcessed() {
+        return tasksProcessed.sum();
+    }
+
+    /**
+     * Tasks waiting on the model queues, summed over the shards.
+     */
+    @Override
+    public long getTaskQueueDepth() {
+        // Read processed first so a task finishing in between cannot make
+        // the depth negative
+        long processed = tasksProcessed.sum();
+        return Math.max(0, tasksEnqueued.sum() - processed);
+    }
+
+    @Override
+    public long getOpenConnections() {
+        long closed = connectionsClosed.sum();
+        return Math.max(0, connectionsOpened.sum() - closed);
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return fanOut.getCount();
+    }
+
+    @Override
+    public double getFanOutMean() {
+        return fanOut.getMean();
+    }
+
+    @Override
+    public long getFanOutP99() {
+        return fanOut.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getFanOutMax() {
+        return fanOut.getMax();
+    }
+
+    @Override
+    public Map<String, Long> getModelTimeCounts() {
+        return summarize(Histogram::getCount);
+    }
+
+    @Override
+    public Map<String, Long> getModelTimeP50() {
+        return summarize(histogram -> histogram.getValueAtPercentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getModelTimeP99() {
+        return summarize(histogram -> histogram.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getModelTimeMax() {
+        return summarize(Histogram::getMax);
+    }
+
+    private Map<String, Long> summarize(ToLongFunction<Histogram> statistic) {
+        Map<String, Long> summary = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : modelTime.entrySet()) {
+            summary.put(entry.getKey(), statistic.applyAsLong(entry.getValue()));
+        }
+        return summary;
+    }
+
+    /**
+     * Formats every metric as plain text, one {@code name value} pair per
+     * line, in the Prometheus exposition format.
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        counter(text, "tasks_enqueued_total", getTasksEnqueued());
+        counter(text, "tasks_processed_total", getTasksProcessed());
+        gauge(text, "task_queue_depth", getTaskQueueDepth());
+        gauge(text, "open_connections", getOpenConnections());
+        counter(text, "lines_written_total", getLinesWritten());
+        counter(text, "bytes_written_total", getBytesWritten());
+        counter(text, "writes_total", getWrites());
+        type(text, "broadcast_fanout", "summary");
+        summary(text, "broadcast_fanout", "", fanOut);
+        type(text, "model_time_nanoseconds", "summary");
+        Map<String, Histogram> sorted = new TreeMap<>(modelTime);
+        for (Map.Entry<String, Histogram> entry : sorted.entrySet()) {
+            summary(text, "model_time_nanoseconds",
+                    "task=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        return text.toString();
+    }
+
+    private static void type(StringBuilder text, String name, String type) {
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, long value) {
+        type(text, name, "counter");
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, long value) {
+        type(text, name, "gauge");
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String name, String labels, Histogram histogram) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (String quantile : new String[] {"0.5", "0.99", "0.999"}) {
+            long value = histogram.getValueAtPercentile(Double.parseDouble(quantile) * 100);
+            text.append(PREFIX).append(name).append('{').append(labels).append(separator)
+                    .append("quantile=\"").append(quantile).append("\"} ").append(value).append('\n');
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        text.append(PREFIX).append(name).append("_count").append(suffix)
+                .append(' ').append(histogram.getCount()).append('\n');
+        text.append(PREFIX).append(name).append("_sum").append(suffix)
+                .append(' ').append(histogram.getSum()).append('\n');
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.Map;
+
+
+/**
+ * The management interface {@link ServerMetrics} is registered under in the
+ * platform MBean server, as {@code chatserver:type=ServerMetrics}.
+ *
+ * Times are in nanoseconds. Maps are keyed by task type, e.g.
+ * {@code JoinCommand} or {@code Registration}.
+ */
+public interface ServerMetricsMXBean {
+
+    long getTasksEnqueued();
+
+    long getTasksProcessed();
+
+    long getTaskQueueDepth();
+
+    long getOpenConnections();
+
+    long getLinesWritten();
+
+    long getBytesWritten();
+
+    long getWrites();
+
+    double getLinesPerWrite();
+
+    long getBroadcasts();
+
+    double getFanOutMean();
+
+    long getFanOutP99();
+
+    long getFanOutMax();
+
+    Map<String, Long> getModelTimeCounts();
+
+    Map<String, Long> getModelTimeP50();
+
+    Map<String, Long> getModelTimeP99();
+
+    Map<String, Long> getModelTimeMax();
+}
@@ -0,0 +1,523 @@
+import java.util.*;
+
+public final class ServerModel {
+
+    private UserRegistry usersRegistered;
+    private TreeMap<String, ChannelUser> channels;
+    // Reverse index: user ID -> names of the channels that user is in
+    private HashMap<Integer, Set<String>> memberships;
+    // Users and channels changed since the last published snapshot
+    private HashSet<Integer> dirtyUsers;
+    private HashSet<String> dirtyChannels;
+    // Whether users or channels were restored from a snapshot file since
+    // the last published snapshot; they are not tracked as dirty
+    private boolean restored;
+    private volatile ModelSnapshot snapshot;
+    // Recent messages replayed to joining users; null unless enabled
+    private MessageHistory history;
+
+    public ServerModel() {
+        usersRegistered = new UserRegistry();
+        channels = new TreeMap<String, ChannelUser>();
+        memberships = new HashMap<Integer, Set<String>>();
+        dirtyUsers = new HashSet<Integer>();
+        dirtyChannels = new HashSet<String>();
+        restored = false;
+        snapshot = ModelSnapshot.EMPTY;
+        history = null;
+    }
+
+    /**
+     * Starts keeping each channel's recent messages, to be sent to users who
+     * join or are invited after them.
+     */
+    void setMessageHistory(MessageHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Returns the state as of the last published snapshot. Unlike the other
+     * queries this may be called from any thread.
+     */
+    public ModelSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publishes the changes made since the last call as a new snapshot. The
+     * server calls this after each batch of tasks.
+     */
+    void publishSnapshot() {
+        ModelSnapshot previous = snapshot;
+        int firstOnlineUserId = usersRegistered.getFirstOnlineUserId();
+        if (dirtyUsers.isEmpty() && dirtyChannels.isEmpty() && !restored
+                && previous.getFirstOnlineUserId() == firstOnlineUserId) {
+            return;
+        }
+        if (previous == ModelSnapshot.EMPTY) {
+            // The first snapshot may hold a whole restored model; build it
+            // in one go rather than entry by entry
+            snapshot = buildFirstSnapshot();
+            dirtyUsers.clear();
+            dirtyChannels.clear();
+            restored = false;
+            return;
+        }
+        PersistentMap<Integer, String> nicknames = previous.getNicknameMap();
+        PersistentMap<String, Integer> userIds = previous.getUserIdMap();
+        PersistentMap<String, ChannelSnapshot> channelSnapshots = previous.getChannelMap();
+
+        // Drop every changed user's old nickname first, as another changed
+        // user may have taken it over
+        for (int userId : dirtyUsers) {
+            String oldNickname = nicknames.get(userId);
+            if (oldNickname != null) {
+                userIds = userIds.remove(oldNickname);
+            }
+        }
+        for (int userId : dirtyUsers) {
+            String nickname = usersRegistered.getNickname(userId);
+            if (nickname == null) {
+                nicknames = nicknames.remove(userId);
+            } else {
+                nicknames = nicknames.put(userId, nickname);
+                userIds = userIds.put(nickname, userId);
+            }
+        }
+        for (String channelName : dirtyChannels) {
+            ChannelUser chans = channels.get(channelName);
+            if (chans == null) {
+                channelSnapshots = channelSnapshots.remove(channelName);
+            } else {
+                channelSnapshots = channelSnapshots.put(channelName, new ChannelSnapshot(
+                        channelName, chans.getOwner(), chans.getPrivacy(), chans.getUsers()));
+            }
+        }
+
+        dirtyUsers.clear();
+        dirtyChannels.clear();
+        snapshot = new ModelSnapshot(nicknames, userIds, channelSnapshots, firstOnlineUserId);
+    }
+
+    /**
+     * Registers a user under a given nickname, as saved in a snapshot file.
+     * Only valid before the first snapshot is published.
+     */
+    void restoreUser(int userId, String nickname) {
+        usersRegistered.register(userId, nickname);
+        restored = true;
+    }
+
+    /**
+     * Recreates a channel saved in a snapshot file. Its members must already
+     * be registered. Only valid before the first snapshot is published.
+     */
+    void restoreChannel(String channelName, int ownerId, boolean inviteOnly, int[] members) {
+        ChannelUser c = new ChannelUser(ownerId, inviteOnly, channelName);
+        channels.put(channelName, c);
+        indexMembership(ownerId, channelName);
+        for (int userId : members) {
+            if (userId != ownerId) {
+                // A new channel has no NAMES payload to update yet
+                c.getUsers().add(userId);
+                indexMembership(userId, channelName);
+            }
+        }
+        restored = true;
+    }
+
+    // Everything in the model is new to the first snapshot, so it is built
+    // from the whole model rather than the dirty sets
+    private ModelSnapshot buildFirstSnapshot() {
+        int users = usersRegistered.size();
+        PersistentMap.Builder<Integer, String> nicknames = PersistentMap.builder(users);
+        PersistentMap.Builder<String, Integer> userIds = PersistentMap.builder(users);
+        for (String nickname : usersRegistered.getNicknames()) {
+            int userId = usersRegistered.getUserId(nickname);
+            nicknames.put(userId, nickname);
+            userIds.put(nickname, userId);
+        }
+        PersistentMap.Builder<String, ChannelSnapshot> channelSnapshots = PersistentMap.builder(channels.size());
+        for (ChannelUser chans : channels.values()) {
+            channelSnapshots.put(chans.getName(), new ChannelSnapshot(
+                    chans.getName(), chans.getOwner(), chans.getPrivacy(), chans.getUsers()));
+        }
+        return new ModelSnapshot(nicknames.build(), userIds.build(), channelSnapshots.build(),
+                usersRegistered.getFirstOnlineUserId());
+    }
+
+    /**
+     * Marks every user registered so far as offline, as after a restart
+     * nobody is connected any more. They stay the owners and members of
+     * their channels until someone connected takes their nickname.
+     *
+     * @param firstOnlineUserId a user ID higher than any registered so far
+     */
+    void markUsersOffline(int firstOnlineUserId) {
+        usersRegistered.setFirstOnlineUserId(firstOnlineUserId);
+    }
+
+    int getFirstOnlineUserId() {
+        return usersRegistered.getFirstOnlineUserId();
+    }
+
+    /**
+     * Returns true if the user owns or belongs to any channel.
+     */
+    boolean isChannelMember(int userId) {
+        return memberships.containsKey(userId);
+    }
+
+   
+    public int getUserId(String nickname) {
+        return usersRegistered.getUserId(nickname);
+    }
+
+ 
+    public String getNickname(int userId) {
+        return usersRegistered.getNickname(userId);
+    }
+
+    public Collection<String> getRegisteredUsers() {
+        return new LinkedList<String>(usersRegistered.getNicknames());
+    }
+
+   
+    public Collection<String> getChannels() {
+        Collection<String> c = new TreeSet<String>(channels.keySet());
+        return c;
+    }
+
+    
+    public Collection<String> getUsersInChannel(String channelName) {
+        if (channels.get(channelName) == null) {
+            return new TreeSet<>();
+        }
+
+        Collection<String> channelUsers = getNicknames(channels.get(channelName));
+        return channelUsers;
+    }
+
+    
+    public String getOwner(String channelName) {
+        if (channels.containsKey(channelName)) {
+            return usersRegistered.getNickname(channels.get(channelName).getOwner());
+        }
+        return null;
+    }
+
+  
+    public Broadcast registerUser(int userId) {
+        String nickname = usersRegistered.nextDefaultNickname();
+        int offlineId = usersRegistered.getUserId(nickname);
+        if (offlineId >= 0) {
+            takeOver(offlineId, userId, nickname);
+        }
+        usersRegistered.register(userId, nickname);
+        dirtyUsers.add(userId);
+        
+        return Broadcast.connected(nickname);
+    }
+
+   
+    public Broadcast deregisterUser(int userId) {
+        TreeSet<String> recipients = new TreeSet<String>();
+        TreeSet<String> removedChans = new TreeSet<String>();
+        String u = usersRegistered.getNickname(userId);
+        if (usersRegistered.containsUser(userId)) {
+            Set<String> joined = memberships.remove(userId);
+            if (joined != null) {
+                for (String channelName : joined) {
+                    dirtyChannels.add(channelName);
+                    ChannelUser chans = channels.get(channelName);
+                    addNicknames(chans, recipients);
+                    if (chans.getOwner() == userId) {
+                        removedChans.add(channelName);
+                    } else {
+                        chans.removeUser(userId, u);
+                    }
+                }
+            }
+            for (String c : removedChans) {
+                removeChannel(c);
+            }
+            usersRegistered.unregister(userId);
+            dirtyUsers.add(userId);
+            recipients.remove(u);
+        }
+        return Broadcast.disconnected(u, recipients);
+    }
+
+   
+    public Broadcast changeNickname(NicknameCommand nickCommand) {
+        String newName = nickCommand.getNewNickname();
+        int holderId = usersRegistered.getUserId(newName);
+        if (holderId >= 0 && !usersRegistered.isOffline(holderId)) {
+            return Broadcast.error(nickCommand, ServerResponse.NAME_ALREADY_IN_USE);
+        }
+        if (!isValidName(newName)) {
+            return Broadcast.error(nickCommand, ServerResponse.INVALID_NAME);
+        }
+        if (holderId >= 0) {
+            takeOver(holderId, nickCommand.getSenderId(), nickCommand.getSender());
+        }
+
+        TreeSet<String> users = new TreeSet<String>();
+
+        // Channels store user IDs, so only the registry needs to learn the
+        // new name, and the cached NAMES of the user's channels be updated
+        String oldName = usersRegistered.getNickname(nickCommand.getSenderId());
+        for (String channelName : getMemberships(nickCommand.getSenderId())) {
+            ChannelUser chans = channels.get(channelName);
+            addNicknames(chans, users);
+            chans.renameUser(oldName, newName);
+        }
+
+        usersRegistered.rename(nickCommand.getSenderId(), newName);
+        dirtyUsers.add(nickCommand.getSenderId());
+        return Broadcast.okay(nickCommand, users);
+    }
+
+ 
+    public static boolean isValidName(String name) {
+        if (name == null || name.isEmpty()) {
+            return false;
+        }
+        for (char character : name.toCharArray()) {
+            if (!Character.isLetterOrDigit(character)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+   
+    public Broadcast createChannel(CreateCommand createCommand) {
+        Collection<String> users = new LinkedList<String>();
+        boolean privacy = createCommand.isInviteOnly();
+        String channelName = createCommand.getChannel();
+
+
+        if (channels.keySet().contains(channelName)) {
+            return Broadcast.error(createCommand, ServerResponse.CHANNEL_ALREADY_EXISTS);
+        }
+        if (!(isValidName(channelName))) {
+            return Broadcast.error(createCommand, ServerResponse.INVALID_NAME);
+        }
+
+        ChannelUser c = new ChannelUser(createCommand.getSenderId(), privacy, channelName);
+        channels.put(channelName, c);
+
+        users.add(createCommand.getSender());
+        addMembership(createCommand.getSenderId(), channelName);
+
+        return Broadcast.okay(createCommand, users);
+    }
+
+  
+    public Broadcast joinChannel(JoinCommand joinCommand) {
+        String nameChannel = joinCommand.getChannel();
+        if (!channels.keySet().contains(nameChannel)) {
+            return Broadcast.error(joinCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        ChannelUser c = channels.get(nameChannel);
+        if (c.getPrivacy()) {
+            return Broadcast.error(joinCommand, ServerResponse.JOIN_PRIVATE_CHANNEL);
+        }
+        c.addUser(joinCommand.getSenderId(), joinCommand.getSender());
+        addMembership(joinCommand.getSenderId(), nameChannel);
+        List<String> recipients = new ArrayList<String>(c.getUsers().size());
+        addNicknames(c, recipients);
+        return names(joinCommand, c, recipients);
+    }
+
+  
+    public Broadcast sendMessage(MessageCommand messageCommand) {
+        ChannelUser chans = channels.get(messageCommand.getChannel());
+        LinkedList<String> recipients = new LinkedList<String>();
+        if (!(channels.keySet().contains(messageCommand.getChannel()))) {
+            return Broadcast.error(messageCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!chans.containsUser(messageCommand.getSenderId())) {
+            return Broadcast.error(messageCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        addNicknames(chans, recipients);
+        if (history != null) {
+            history.record(messageCommand.getChannel(), messageCommand.getEncoded(), System.currentTimeMillis());
+        }
+        return Broadcast.okay(messageCommand, recipients);
+    }
+
+  
+    public Broadcast leaveChannel(LeaveCommand leaveCommand) {
+        int userId = leaveCommand.getSenderId();
+        TreeSet<String> recipients = new TreeSet<String>();
+        ChannelUser chans = channels.get(leaveCommand.getChannel());
+        if (!channels.keySet().contains(leaveCommand.getChannel())) {
+            return Broadcast.error(leaveCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        if (!chans.containsUser(userId)) {
+            return Broadcast.error(leaveCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        addNicknames(chans, recipients);
+        if (chans.getOwner() == userId) {
+            removeChannel(leaveCommand.getChannel());
+        } else {
+            chans.removeUser(userId, leaveCommand.getSender());
+            removeMembership(userId, leaveCommand.getChannel());
+        }
+        return Broadcast.okay(leaveCommand, recipients);
+    }
+
+    
+    public Broadcast inviteUser(InviteCommand inviteCommand) {
+        String channelName = inviteCommand.getChannel();
+        if (!channels.keySet().contains(channelName)) {
+            return Broadcast.error(inviteCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+
+        if (!usersRegistered.containsNickname(inviteCommand.getUserToInvite())) {
+            return Broadcast.error(inviteCommand, ServerResponse.NO_SUCH_USER);
+        }
+        
+        ChannelUser chans = channels.get(channelName);
+        if (chans.getOwner() != inviteCommand.getSenderId()) {
+            return Broadcast.error(inviteCommand, ServerResponse.USER_NOT_OWNER);
+        }
+
+        if (!chans.getPrivacy()) {
+            return Broadcast.error(inviteCommand, ServerResponse.INVITE_TO_PUBLIC_CHANNEL);
+        }
+
+        int invitedId = usersRegistered.getUserId(inviteCommand.getUserToInvite());
+        chans.addUser(invitedId, inviteCommand.getUserToInvite());
+        addMembership(invitedId, channelName);
+        List<String> recipients = new ArrayList<String>(chans.getUsers().size());
+        addNicknames(chans, recipients);
+
+        return names(inviteCommand, chans, recipients);
+    }
+
+   
+    public Broadcast kickUser(KickCommand kickCommand) {
+        String nameChannel = kickCommand.getChannel();
+        int userId = kickCommand.getSenderId();
+        TreeSet<String> recipients = new TreeSet<String>();
+        if (!channels.keySet().contains(nameChannel)) {
+            return Broadcast.error(kickCommand, ServerResponse.NO_SUCH_CHANNEL);
+        }
+        ChannelUser chans = channels.get(nameChannel);
+        if (!(usersRegistered.containsNickname(kickCommand.getUserToKick()))) {
+            return Broadcast.error(kickCommand, ServerResponse.NO_SUCH_USER);
+        }
+        int kickedId = usersRegistered.getUserId(kickCommand.getUserToKick());
+        if (!(chans.containsUser(kickedId))) {
+            return Broadcast.error(kickCommand, ServerResponse.USER_NOT_IN_CHANNEL);
+        }
+        if (chans.getOwner() != userId) {
+            return Broadcast.error(kickCommand, ServerResponse.USER_NOT_OWNER);
+        }
+        if (chans.getOwner() == kickedId) {
+            removeChannel(nameChannel);
+            recipients.add(kickCommand.getUserToKick());
+        } else {
+            chans.removeUser(kickedId, kickCommand.getUserToKick());
+            removeMembership(kickedId, nameChannel);
+        }
+
+        addNicknames(chans, recipients);
+        recipients.add(kickCommand.getUserToKick());
+
+        return Broadcast.okay(kickCommand, recipients);
+    }
+
+    // Relays a JOIN or INVITE with the channel's cached NAMES payload,
+    // building and sorting it only if there is none, and follows the NAMES
+    // with the channel's recent messages
+    private Broadcast names(Command command, ChannelUser chans, Collection<String> members) {
+        if (chans.getNamesPayload() == null) {
+            String owner = usersRegistered.getNickname(chans.getOwner());
+            chans.setNamesPayload(Broadcast.createNamesPayload(owner, members));
+        }
+        Broadcast broadcast = Broadcast.names(
+                command, members, chans.getNamesPayload(), chans.getEncodedNamesPayload());
+        if (history != null) {
+            byte[] recent = history.replay(chans.getName(), System.currentTimeMillis());
+            if (recent != null) {
+                String joiner = command instanceof InviteCommand inviteCommand
+                        ? inviteCommand.getUserToInvite() : command.getSender();
+                broadcast.addHistory(joiner, recent);
+            }
+        }
+        return broadcast;
+    }
+
+    // Moves an offline user's channels, ownership included, to a connected
+    // user and forgets the offline one, freeing their nickname
+    private void takeOver(int offlineId, int userId, String nickname) {
+        String offlineName = usersRegistered.getNickname(offlineId);
+        usersRegistered.unregister(offlineId);
+        dirtyUsers.add(offlineId);
+        Set<String> joined = memberships.remove(offlineId);
+        if (joined == null) {
+            return;
+        }
+        for (String channelName : joined) {
+            ChannelUser chans = channels.get(channelName);
+            chans.removeUser(offlineId, offlineName);
+            chans.addUser(userId, nickname);
+            if (chans.getOwner() == offlineId) {
+                chans.setOwner(userId);
+            }
+            addMembership(userId, channelName);
+        }
+    }
+
+    private Set<String> getMemberships(int userId) {
+        Set<String> joined = memberships.get(userId);
+        return joined == null ? Collections.<String>emptySet() : joined;
+    }
+
+    private void addMembership(int userId, String channelName) {
+        dirtyChannels.add(channelName);
+        indexMembership(userId, channelName);
+    }
+
+    // Most users are in a handful of channels, so their sets start small
+    private void indexMembership(int userId, String channelName) {
+        memberships.computeIfAbsent(userId, id -> new HashSet<String>(4)).add(channelName);
+    }
+
+    private void removeMembership(int userId, String channelName) {
+        dirtyChannels.add(channelName);
+        Set<String> joined = memberships.get(userId);
+        if (joined != null) {
+            joined.remove(channelName);
+            if (joined.isEmpty()) {
+                memberships.remove(userId);
+            }
+        }
+    }
+
+    // Deletes a channel and drops it from every member's reverse index entry
+    private void removeChannel(String channelName) {
+        ChannelUser chans = channels.remove(channelName);
+        dirtyChannels.add(channelName);
+        if (history != null) {
+            history.remove(channelName);
+        }
+        chans.getUsers().forEach(userId -> removeMembership(userId, channelName));
+    }
+
+    // Nicknames are resolved from member IDs only when a response needs them
+    private TreeSet<String> getNicknames(ChannelUser chans) {
+        TreeSet<String> nicknames = new TreeSet<String>();
+        addNicknames(chans, nicknames);
+        return nicknames;
+    }
+
+    private void addNicknames(ChannelUser chans, Collection<String> nicknames) {
+        chans.getUsers().forEach(userId -> nicknames.add(usersRegistered.getNickname(userId)));
+    }
+
+}
@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * Saves a model shard's state to a compact binary file and loads it back.
+ *
+ * The file holds a {@link ModelSnapshot}, so it can be written from any
+ * thread while the model keeps changing, together with the journal
+ * generation it covers: replaying journals from that generation on brings
+ * the loaded model up to date. The layout, big-endian, is
+ *
+ *     int magic, int version, long generation, int firstOnlineUserId,
+ *     int userCount, { int userId, string nickname } ...,
+ *     int channelCount, { string name, int ownerId, byte inviteOnly,
+ *                         int memberCount, int userId ... } ...,
+ *     int crc32 of everything before it
+ *
+ * where a string is an int byte count followed by UTF-8 bytes, and users
+ * with IDs below firstOnlineUserId are offline. Version 1 files lack that
+ * field and load as if every user were online. Files are
+ * written under a temporary name and moved into place, so a crash leaves
+ * either the old snapshot or the new one.
+ */
+final class SnapshotFile {
+
+    private static final int MAGIC = 0x43534e50; // "CSNP"
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes the snapshot and forces it to disk, moved into place, before
+     * returning.
+     */
+    public static void write(ModelSnapshot snapshot, long generation, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(generation);
+            out.putInt(snapshot.getFirstOnlineUserId());
+
+            PersistentMap<Integer, String> nicknames = snapshot.getNicknameMap();
+            out.putInt(nicknames.size());
+            for (Map.Entry<Integer, String> user : nicknames) {
+                out.putInt(user.getKey());
+                out.putString(user.getValue());
+            }
+
+            // In name order, which is the order the model keeps them in
+            ChannelSnapshot[] channels = snapshot.getChannelMap().values().toArray(new ChannelSnapshot[0]);
+            Arrays.sort(channels, Comparator.comparing(ChannelSnapshot::getName));
+            out.putInt(channels.length);
+            for (ChannelSnapshot chans : channels) {
+                out.putString(chans.getName());
+                out.putInt(chans.getOwnerId());
+                out.putByte(chans.isInviteOnly() ? (byte) 1 : (byte) 0);
+                out.putInt(chans.size());
+                for (int userId : chans.getUserIds()) {
+                    out.putInt(userId);
+                }
+            }
+            out.finish();
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Journal.forceDirectory(file);
+    }
+
+    /**
+     * Memory-maps a snapshot file and restores its users and channels into
+     * an empty model.
+     *
+     * @return the journal generation the snapshot covers
+     * @throws IOException if the file is not an intact snapshot
+     */
+    public static long load(Path file, ServerModel model) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 24 || size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " has an invalid size");
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int end = (int) size - 4;
+            CRC32 crc = new CRC32();
+            crc.update(in.duplicate().limit(end));
+            if ((int) crc.getValue() != in.getInt(end)) {
+                throw new IOException("Snapshot " + file + " is corrupt");
+            }
+            in.limit(end);
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Snapshot " + file + " has an unknown format");
+            }
+            int version = in.getInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Snapshot " + file + " has an unknown format");
+            }
+            long generation = in.getLong();
+            int firstOnlineUserId = version == 1 ? 0 : in.getInt();
+            byte[][] scratch = {new byte[256]};
+
+            int users = in.getInt();
+            for (int i = 0; i < users; i++) {
+                int userId = in.getInt();
+                model.restoreUser(userId, getString(in, scratch));
+            }
+
+            int channels = in.getInt();
+            for (int i = 0; i < channels; i++) {
+                String name = getString(in, scratch);
+                int ownerId = in.getInt();
+                boolean inviteOnly = in.get() != 0;
+                int[] members = new int[in.getInt()];
+                for (int k = 0; k < members.length; k++) {
+                    members[k] = in.getInt();
+                }
+                model.restoreChannel(name, ownerId, inviteOnly, members);
+            }
+            model.markUsersOffline(firstOnlineUserId);
+            return generation;
+        } catch (RuntimeException rx) {
+            // A checksum collision or a bug; either way the file is unusable
+            throw new IOException("Snapshot " + file + " could not be read", rx);
+        }
+    }
+
+    // Decodes a string through a scratch array, grown as needed and reused
+    // for every string, since a mapped buffer has no array of its own
+    private static String getString(ByteBuffer in, byte[][] scratch) {
+        int length = in.getInt();
+        if (scratch[0].length < length) {
+            scratch[0] = new byte[Math.max(length, scratch[0].length * 2)];
+        }
+        in.get(scratch[0], 0, length);
+        return new String(scratch[0], 0, length, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Buffers output, writing it out in large chunks and keeping a running
+     * checksum of everything written.
+     */
+    private static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final CRC32 crc;
+
+        public Writer(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.crc = new CRC32();
+        }
+
+        public void putByte(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        public void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        public void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        public void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int count = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, count);
+                offset += count;
+            }
+        }
+
+        /**
+         * Appends the checksum and writes whatever is still buffered.
+         */
+        public void finish() throws IOException {
+            drain();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            writeFully();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            writeFully();
+        }
+
+        private void writeFully() throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+
+    private SnapshotFile() {
+    }
+}
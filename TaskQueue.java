@@ -0,0 +1,46 @@
+import java.util.Collection;
+
+
+/**
+ * The queue that carries work from connection threads (many producers) to
+ * the model thread (a single consumer).
+ */
+interface TaskQueue<E> {
+
+    /**
+     * Adds an element, waiting for space if the queue is bounded and full.
+     */
+    void put(E element);
+
+    /**
+     * Removes the oldest element, waiting until one is available.
+     *
+     * @throws InterruptedException if the consumer is interrupted while waiting
+     */
+    E take() throws InterruptedException;
+
+    /**
+     * Moves up to {@code max} immediately available elements into
+     * {@code sink}, oldest first, without waiting.
+     *
+     * @return the number of elements moved
+     */
+    int drainTo(Collection<? super E> sink, int max);
+
+    boolean isEmpty();
+
+    int size();
+
+    /**
+     * Creates the queue implementation selected by the configuration.
+     */
+    static <E> TaskQueue<E> create(ServerConfig config) {
+        switch (config.getTaskQueue()) {
+            case RING:
+                return new RingTaskQueue<>(config.getTaskQueueCapacity(), config.getWaitStrategy());
+            case LINKED:
+            default:
+                return new LinkedTaskQueue<>();
+        }
+    }
+}
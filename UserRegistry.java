@@ -0,0 +1,200 @@
+import java.util.*;
+
+
+/**
+ * The set of registered users, indexed both by user ID and by nickname.
+ *
+ * Both directions are updated together by every mutator, so lookups either
+ * way are constant time and the two indexes can never disagree.
+ *
+ * The registry also tracks which default "UserN" nicknames are taken, so
+ * the lowest free one can be found without scanning every nickname.
+ *
+ * Users registered before the server last restarted are offline: they are
+ * kept only as the owners and members of their channels. Their default
+ * nicknames are not tracked as taken, so a connecting user may be given
+ * one and take the offline user's place.
+ */
+final class UserRegistry {
+
+    private static final String DEFAULT_PREFIX = "User";
+    // Default nicknames numbered this high or higher are not tracked
+    private static final int MAX_TRACKED_SUFFIX = 1 << 24;
+
+    private final Map<Integer, String> nicknames;
+    private final Map<String, Integer> userIds;
+    // Suffixes N of the canonical "UserN" nicknames currently held
+    private final BitSet defaultSuffixes;
+    // No suffix below this one is free
+    private int lowestFreeSuffix;
+    // Users with lower IDs were registered before the last restart
+    private int firstOnlineUserId;
+
+    public UserRegistry() {
+        nicknames = new HashMap<>();
+        userIds = new HashMap<>();
+        defaultSuffixes = new BitSet();
+        lowestFreeSuffix = 0;
+        firstOnlineUserId = 0;
+    }
+
+    /**
+     * Returns the lowest-numbered "UserN" nickname no online user holds. An
+     * offline user may hold it.
+     */
+    public String nextDefaultNickname() {
+        int suffix = defaultSuffixes.nextClearBit(lowestFreeSuffix);
+        lowestFreeSuffix = suffix;
+        String nickname = DEFAULT_PREFIX + suffix;
+        // Only reachable once every tracked suffix is taken
+        while (isHeldOnline(nickname)) {
+            nickname = DEFAULT_PREFIX + ++suffix;
+        }
+        return nickname;
+    }
+
+    /**
+     * Adds a user under the given nickname.
+     *
+     * @throws IllegalArgumentException if the ID or nickname is already taken
+     */
+    public void register(int userId, String nickname) {
+        if (nicknames.containsKey(userId) || userIds.containsKey(nickname)) {
+            throw new IllegalArgumentException("User ID or nickname already registered");
+        }
+        nicknames.put(userId, nickname);
+        userIds.put(nickname, userId);
+        nicknameTaken(userId, nickname);
+    }
+
+    /**
+     * Removes a user, returning the nickname they held, or null if the user
+     * was not registered.
+     */
+    public String unregister(int userId) {
+        String nickname = nicknames.remove(userId);
+        if (nickname != null) {
+            userIds.remove(nickname);
+            nicknameReleased(userId, nickname);
+        }
+        return nickname;
+    }
+
+    /**
+     * Moves a registered user to a new, unused nickname.
+     *
+     * @throws IllegalArgumentException if the user is unknown or the nickname
+     *                                  is already taken
+     */
+    public void rename(int userId, String newNickname) {
+        String oldNickname = nicknames.get(userId);
+        if (oldNickname == null || userIds.containsKey(newNickname)) {
+            throw new IllegalArgumentException("Unknown user or nickname already registered");
+        }
+        userIds.remove(oldNickname);
+        userIds.put(newNickname, userId);
+        nicknames.put(userId, newNickname);
+        nicknameReleased(userId, oldNickname);
+        nicknameTaken(userId, newNickname);
+    }
+
+    /**
+     * Marks every user with an ID below the given one as offline.
+     */
+    public void setFirstOnlineUserId(int userId) {
+        firstOnlineUserId = userId;
+        defaultSuffixes.clear();
+        lowestFreeSuffix = 0;
+        for (Map.Entry<Integer, String> user : nicknames.entrySet()) {
+            nicknameTaken(user.getKey(), user.getValue());
+        }
+    }
+
+    public int getFirstOnlineUserId() {
+        return firstOnlineUserId;
+    }
+
+    /**
+     * Returns true if the user is registered but has not been connected
+     * since the server last restarted.
+     */
+    public boolean isOffline(int userId) {
+        return userId < firstOnlineUserId && nicknames.containsKey(userId);
+    }
+
+    /**
+     * Returns the user's nickname, or null if the user is not registered.
+     */
+    public String getNickname(int userId) {
+        return nicknames.get(userId);
+    }
+
+    /**
+     * Returns the ID of the user holding the nickname, or -1 if none does.
+     */
+    public int getUserId(String nickname) {
+        Integer userId = userIds.get(nickname);
+        return userId == null ? -1 : userId;
+    }
+
+    public boolean containsUser(int userId) {
+        return nicknames.containsKey(userId);
+    }
+
+    public boolean containsNickname(String nickname) {
+        return userIds.containsKey(nickname);
+    }
+
+    /**
+     * A read-only view of every registered nickname.
+     */
+    public Collection<String> getNicknames() {
+        return Collections.unmodifiableCollection(nicknames.values());
+    }
+
+    public int size() {
+        return nicknames.size();
+    }
+
+    private boolean isHeldOnline(String nickname) {
+        Integer userId = userIds.get(nickname);
+        return userId != null && userId >= firstOnlineUserId;
+    }
+
+    private void nicknameTaken(int userId, String nickname) {
+        int suffix = defaultSuffix(nickname);
+        if (suffix >= 0 && userId >= firstOnlineUserId) {
+            defaultSuffixes.set(suffix);
+        }
+    }
+
+    private void nicknameReleased(int userId, String nickname) {
+        int suffix = defaultSuffix(nickname);
+        if (suffix >= 0 && userId >= firstOnlineUserId) {
+            defaultSuffixes.clear(suffix);
+            lowestFreeSuffix = Math.min(lowestFreeSuffix, suffix);
+        }
+    }
+
+    /**
+     * Returns N if the nickname is exactly "UserN" (no leading zeros) with N
+     * below the tracking limit, otherwise -1.
+     */
+    private static int defaultSuffix(String nickname) {
+        int start = DEFAULT_PREFIX.length();
+        int length = nickname.length() - start;
+        if (length < 1 || length > 8 || !nickname.startsWith(DEFAULT_PREFIX)
+                || (length > 1 && nickname.charAt(start) == '0')) {
+            return -1;
+        }
+        int suffix = 0;
+        for (int i = start; i < nickname.length(); i++) {
+            char digit = nickname.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+            suffix = suffix * 10 + (digit - '0');
+        }
+        return suffix < MAX_TRACKED_SUFFIX ? suffix : -1;
+    }
+}
@@ -0,0 +1,102 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Creates the threads that service client connections, either as ordinary
+ * platform threads or as virtual threads.
+ *
+ * Virtual threads are looked up reflectively so the server still builds and
+ * runs on JDKs that predate them; asking for {@code VIRTUAL} there falls back
+ * to platform threads with a warning.
+ */
+final class WorkerThreads {
+
+    private static final MethodHandle NEW_VIRTUAL_EXECUTOR;
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle BUILDER_NAME;
+    private static final MethodHandle BUILDER_UNSTARTED;
+
+    static {
+        MethodHandle newVirtualExecutor = null;
+        MethodHandle ofVirtual = null;
+        MethodHandle builderName = null;
+        MethodHandle builderUnstarted = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtualBuilder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            newVirtualExecutor = lookup.findStatic(Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual",
+                    MethodType.methodType(ofVirtualBuilder));
+            builderName = lookup.findVirtual(builder, "name",
+                    MethodType.methodType(builder, String.class));
+            builderUnstarted = lookup.findVirtual(builder, "unstarted",
+                    MethodType.methodType(Thread.class, Runnable.class));
+        } catch (ReflectiveOperationException | RuntimeException x) {
+            newVirtualExecutor = null;
+        }
+        NEW_VIRTUAL_EXECUTOR = newVirtualExecutor;
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    private static boolean warned = false;
+
+    public static boolean virtualThreadsAvailable() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Returns the executor that runs one task per client connection.
+     */
+    public static ExecutorService newWorkerPool(ServerConfig.Threading threading) {
+        if (useVirtual(threading)) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke();
+            } catch (Throwable t) {
+                throw new IllegalStateException("Unable to create virtual thread executor", t);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Returns an unstarted thread of the requested kind.
+     */
+    public static Thread newThread(ServerConfig.Threading threading, String name, Runnable task) {
+        if (useVirtual(threading)) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (Throwable t) {
+                throw new IllegalStateException("Unable to create virtual thread", t);
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    private static synchronized boolean useVirtual(ServerConfig.Threading threading) {
+        if (threading != ServerConfig.Threading.VIRTUAL) {
+            return false;
+        }
+        if (!virtualThreadsAvailable()) {
+            if (!warned) {
+                System.err.println(
+                        "Virtual threads are not available on this JDK; using platform threads");
+                warned = true;
+            }
+            return false;
+        }
+        return true;
+    }
+
+
+    private WorkerThreads() {
+    }
+}
@@ -0,0 +1,96 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+
+/**
+ * A small measurement harness for the single-threaded benchmark suites.
+ *
+ * Each benchmark is calibrated so one round takes about
+ * {@value #TARGET_ROUND_MS} ms, then run for {@value #WARMUP_ROUNDS} warmup
+ * and {@value #MEASURED_ROUNDS} measured rounds. It prints one line with
+ * the median, minimum and maximum time per operation and the bytes
+ * allocated per operation, in a fixed format so runs from different commits
+ * can be compared line by line.
+ *
+ * Set {@code -Dbench.filter=text} to run only benchmarks whose name contains
+ * the text.
+ */
+final class Bench {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final long TARGET_ROUND_MS = 200;
+
+    private static final String FILTER = System.getProperty("bench.filter", "");
+
+    /**
+     * The code under test: performs the given number of operations.
+     */
+    interface Body {
+        void run(int operations) throws Exception;
+    }
+
+    // Results are written here so the JIT cannot discard the work
+    private static volatile Object sink;
+
+    public static void consume(Object value) {
+        sink = value;
+    }
+
+    public static void header(String suite) {
+        System.out.printf("# %s%n", suite);
+    }
+
+    public static void measure(String name, Body body) throws Exception {
+        if (!name.contains(FILTER)) {
+            return;
+        }
+
+        // The first pass also absorbs class loading and interpretation
+        calibrate(body);
+        int operations = calibrate(body);
+        double[] nanosPerOp = new double[MEASURED_ROUNDS];
+        double bytesPerOp = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long bytesBefore = allocatedBytes();
+            long begin = System.nanoTime();
+            body.run(operations);
+            long elapsed = System.nanoTime() - begin;
+            long bytes = allocatedBytes() - bytesBefore;
+            if (round >= WARMUP_ROUNDS) {
+                nanosPerOp[round - WARMUP_ROUNDS] = (double) elapsed / operations;
+                bytesPerOp += (double) bytes / operations / MEASURED_ROUNDS;
+            }
+        }
+        Arrays.sort(nanosPerOp);
+        System.out.printf("%-44s %12.1f ns/op  min %12.1f  max %12.1f  %10.1f B/op%n",
+                name, nanosPerOp[MEASURED_ROUNDS / 2], nanosPerOp[0],
+                nanosPerOp[MEASURED_ROUNDS - 1], bytesPerOp);
+    }
+
+    // Doubles the operation count until one round takes long enough
+    private static int calibrate(Body body) throws Exception {
+        int operations = 1;
+        while (true) {
+            long begin = System.nanoTime();
+            body.run(operations);
+            long elapsedMs = (System.nanoTime() - begin) / 1_000_000;
+            if (elapsedMs >= TARGET_ROUND_MS || operations >= 1 << 30) {
+                return operations;
+            }
+            if (elapsedMs < TARGET_ROUND_MS / 4) {
+                operations *= 2;
+            } else {
+                return (int) Math.max(1, operations * TARGET_ROUND_MS / Math.max(1, elapsedMs));
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private Bench() {
+    }
+}
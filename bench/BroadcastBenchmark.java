@@ -0,0 +1,67 @@
+import java.util.Arrays;
+import java.util.TreeSet;
+
+
+/**
+ * Cost of building broadcasts and of resolving them into per-user
+ * responses, for varying numbers of recipients. Usage:
+ *
+ *     java -cp out BroadcastBenchmark [recipients ...]
+ *
+ * Defaults to 10, 1000 and 10000 recipients.
+ */
+public final class BroadcastBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {10, 1_000, 10_000};
+
+        Bench.header("Broadcast");
+        for (int size : sizes) {
+            ServerModel model = new ServerModel();
+            TreeSet<String> recipients = new TreeSet<>();
+            for (int userId = 0; userId < size; userId++) {
+                model.registerUser(userId);
+                recipients.add(model.getNickname(userId));
+            }
+            String sender = model.getNickname(0);
+            String suffix = "/recipients=" + size;
+
+            Bench.measure("broadcast/okay" + suffix, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    Bench.consume(Broadcast.okay(
+                            new MessageCommand(0, sender, "channel", "hello everyone"), recipients));
+                }
+            });
+
+            Bench.measure("broadcast/names" + suffix, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    Bench.consume(Broadcast.names(
+                            new JoinCommand(0, sender, "channel"), recipients, sender));
+                }
+            });
+
+            Broadcast message = Broadcast.okay(
+                    new MessageCommand(0, sender, "channel", "hello everyone"), recipients);
+            Bench.measure("broadcast/getResponses" + suffix, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    Bench.consume(message.getResponses(model));
+                }
+            });
+
+            Broadcast[] parts = {
+                    message,
+                    Broadcast.okay(new NicknameCommand(0, sender, "renamed"), recipients),
+            };
+            Bench.measure("broadcast/merge" + suffix, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    Bench.consume(Broadcast.merge(parts));
+                }
+            });
+        }
+    }
+
+    private BroadcastBenchmark() {
+    }
+}
@@ -0,0 +1,130 @@
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Throughput and allocation of the command parser over mixes of MESG, JOIN
+ * and NICK lines like the ones clients send, parsed from raw bytes as the
+ * transports do and from Strings.
+ *
+ * The previous substring-per-token parser is kept here as a baseline so they
+ * can be compared on the same machine. Usage:
+ *
+ *     java -cp out CommandParsingBenchmark
+ */
+public final class CommandParsingBenchmark {
+
+    private static final int LINES = 10_000;
+
+    // Percentages of MESG, JOIN and NICK lines, and the message text length
+    private static final Object[][] MIXES = {
+            {"chat", 90, 5, 5, 40},
+            {"chat-long", 90, 5, 5, 1000},
+            {"churn", 40, 40, 20, 40},
+    };
+
+    public static void main(String[] args) throws Exception {
+        Bench.header("Command parsing");
+        for (Object[] mix : MIXES) {
+            String[] input = generate(LINES, (Integer) mix[1], (Integer) mix[2], (Integer) mix[4]);
+            byte[][] encoded = new byte[input.length][];
+            for (int i = 0; i < input.length; i++) {
+                encoded[i] = input[i].getBytes(StandardCharsets.UTF_8);
+            }
+
+            Bench.measure("parse/" + mix[0] + "/bytes", operations -> {
+                for (int i = 0; i < operations; i++) {
+                    byte[] line = encoded[i % LINES];
+                    Bench.consume(CommandParsing.parse(1, "User1", line, 0, line.length));
+                }
+            });
+            Bench.measure("parse/" + mix[0] + "/indexed", operations -> {
+                for (int i = 0; i < operations; i++) {
+                    Bench.consume(CommandParsing.parse(1, "User1", input[i % LINES]));
+                }
+            });
+            Bench.measure("parse/" + mix[0] + "/substring", operations -> {
+                for (int i = 0; i < operations; i++) {
+                    Bench.consume(LegacyParser.parse(1, "User1", input[i % LINES]));
+                }
+            });
+        }
+    }
+
+    private static String[] generate(int count, int mesgPercent, int joinPercent, int textLength) {
+        Random random = new Random(42);
+        char[] text = new char[textLength];
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(100);
+            String channel = "channel" + random.nextInt(100);
+            if (kind < mesgPercent) {
+                for (int c = 0; c < text.length; c++) {
+                    text[c] = c % 6 == 5 ? ' ' : (char) ('a' + random.nextInt(26));
+                }
+                lines[i] = "MESG " + channel + " :" + new String(text);
+            } else if (kind < mesgPercent + joinPercent) {
+                lines[i] = "JOIN " + channel;
+            } else {
+                lines[i] = "NICK nick" + random.nextInt(10_000);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * The parser as it was before it tokenized by index.
+     */
+    private static final class LegacyParser {
+
+        static Command parse(int senderId, String sender, String commandString) {
+            String verb = null;
+            List<String> parameters = new LinkedList<>();
+            String payload = null;
+            int index;
+
+            while ((index = commandString.indexOf(' ')) > 0) {
+                if (commandString.startsWith(":")) {
+                    payload = commandString.substring(1);
+                    commandString = "";
+                    break;
+                } else {
+                    String token = commandString.substring(0, index);
+                    if (verb == null) {
+                        verb = token;
+                    } else {
+                        parameters.add(token);
+                    }
+                    commandString = commandString.substring(index + 1);
+                }
+            }
+
+            if (!commandString.isEmpty()) {
+                if (commandString.startsWith(":")) {
+                    payload = commandString.substring(1);
+                } else if (verb == null) {
+                    verb = commandString;
+                } else {
+                    parameters.add(commandString);
+                }
+            }
+
+            String param0 = parameters.size() >= 1 ? parameters.get(0) : null;
+            switch (verb) {
+                case "JOIN":
+                    return new JoinCommand(senderId, sender, param0);
+                case "MESG":
+                    return new MessageCommand(senderId, sender, param0, payload);
+                case "NICK":
+                    return new NicknameCommand(senderId, sender, param0);
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private CommandParsingBenchmark() {
+    }
+}
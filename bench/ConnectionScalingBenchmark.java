@@ -0,0 +1,176 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+
+/**
+ * Measures how many mostly-idle clients the blocking transport can hold with
+ * platform threads versus virtual threads.
+ *
+ * Every (threading, clients) pair runs in a fresh JVM so heap, RSS and thread
+ * counts are not polluted by an earlier run. Usage:
+ *
+ *     java -cp out ConnectionScalingBenchmark [PLATFORM|VIRTUAL ...] [clients ...]
+ *
+ * Defaults to both threading modes at 1000, 10000 and 50000 clients. Large
+ * runs need a high file descriptor limit ({@code ulimit -n 200000}); clients
+ * are spread over several loopback addresses so they do not exhaust the
+ * ephemeral port range of a single one.
+ */
+public final class ConnectionScalingBenchmark {
+
+    private static final int PORT = 21212;
+    private static final int LOOPBACK_ADDRESSES = 4;
+    private static final long REGISTRATION_TIMEOUT_MS = 120_000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals("--run")) {
+            run(ServerConfig.Threading.valueOf(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        List<ServerConfig.Threading> modes = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        for (String arg : args) {
+            if (Character.isDigit(arg.charAt(0))) {
+                counts.add(Integer.parseInt(arg));
+            } else {
+                modes.add(ServerConfig.Threading.valueOf(arg.toUpperCase()));
+            }
+        }
+        if (modes.isEmpty()) {
+            modes.addAll(Arrays.asList(ServerConfig.Threading.values()));
+        }
+        if (counts.isEmpty()) {
+            counts.addAll(Arrays.asList(1_000, 10_000, 50_000));
+        }
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for (ServerConfig.Threading mode : modes) {
+            for (int count : counts) {
+                Process process = new ProcessBuilder(
+                        java, "-cp", System.getProperty("java.class.path"),
+                        ConnectionScalingBenchmark.class.getName(),
+                        "--run", mode.name(), Integer.toString(count)
+                ).inheritIO().start();
+                process.waitFor();
+            }
+        }
+    }
+
+    private static void run(ServerConfig.Threading threading, int clients) throws Exception {
+        // The server logs every line it sends; keep that out of the results
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServerConfig config = new ServerConfig().setThreading(threading);
+        ServerBackend backend = new ServerBackend(new ServerModel(), config);
+        WorkerThreads.newThread(threading, "Connection acceptor", backend).start();
+        awaitListening();
+
+        List<SocketChannel> channels = new ArrayList<>(clients);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < clients; i++) {
+                String host = "127.0.0." + (1 + i % LOOPBACK_ADDRESSES);
+                channels.add(SocketChannel.open(new InetSocketAddress(host, PORT)));
+            }
+            long connected = System.nanoTime();
+            int registered = awaitRegistrations(channels);
+            long done = System.nanoTime();
+
+            System.gc();
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            results.printf(
+                    "threads=%-8s clients=%-6d connect_ms=%-7d register_ms=%-7d registered=%-6d "
+                            + "platform_threads=%-6d heap_mb=%-6d rss_mb=%d%n",
+                    threading, clients,
+                    (connected - start) / 1_000_000, (done - connected) / 1_000_000, registered,
+                    threads, heap >> 20, residentSetSize() >> 20
+            );
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            backend.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void awaitListening() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT))) {
+                probe.shutdownOutput();
+                return;
+            } catch (IOException iox) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start listening");
+    }
+
+    /**
+     * Waits until every client has received its CONNECT line, or the timeout
+     * expires, and returns how many did.
+     */
+    private static int awaitRegistrations(List<SocketChannel> channels) throws IOException {
+        Selector selector = Selector.open();
+        for (SocketChannel channel : channels) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        int remaining = channels.size();
+        long deadline = System.currentTimeMillis() + REGISTRATION_TIMEOUT_MS;
+        while (remaining > 0 && System.currentTimeMillis() < deadline) {
+            selector.select(1_000);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                buffer.clear();
+                int count = ((SocketChannel) key.channel()).read(buffer);
+                for (int i = 0; i < count; i++) {
+                    if (buffer.get(i) == '\n') {
+                        key.cancel();
+                        remaining--;
+                        break;
+                    }
+                }
+                if (count < 0) {
+                    key.cancel();
+                }
+            }
+        }
+        selector.close();
+        return channels.size() - remaining;
+    }
+
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException x) {
+            // Not on Linux
+        }
+        return -1;
+    }
+
+    private ConnectionScalingBenchmark() {
+    }
+}
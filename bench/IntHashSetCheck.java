@@ -0,0 +1,86 @@
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * Randomized check of {@link IntHashSet} against a {@link HashSet}: runs
+ * random adds and removes over a small range of values, so probe chains
+ * collide and removals have to shift entries back, and compares the two
+ * after every step. Usage:
+ *
+ *     java -cp out IntHashSetCheck [seed] [operations]
+ *
+ * Defaults to a random seed and 1,000,000 operations. A failure reports
+ * the seed, so it can be rerun.
+ */
+public final class IntHashSetCheck {
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : new Random().nextLong();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        Random random = new Random(seed);
+
+        IntHashSet set = new IntHashSet();
+        Set<Integer> expected = new HashSet<>();
+        IntHashSet copy = null;
+        Set<Integer> copyExpected = null;
+        for (int i = 0; i < operations; i++) {
+            // Vary the range so the set keeps growing past and shrinking
+            // below its resize points
+            int range = 1 << (4 + (i / 10_000) % 10);
+            int value = random.nextInt(range);
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                check(set.add(value) == expected.add(value), seed, i, "add " + value);
+            } else if (operation < 9) {
+                check(set.remove(value) == expected.remove(value), seed, i, "remove " + value);
+            } else {
+                check(set.contains(value) == expected.contains(value), seed, i, "contains " + value);
+            }
+            check(set.size() == expected.size(), seed, i, "size");
+            check(!set.contains(-1 - value), seed, i, "contains a negative value");
+
+            if (i % 1_000 == 0) {
+                checkContents(set, expected, seed, i);
+                if (copy != null) {
+                    // Changes to the original since the copy must not show
+                    checkContents(copy, copyExpected, seed, i);
+                }
+                copy = set.copy();
+                copyExpected = new HashSet<>(expected);
+            }
+        }
+        checkContents(set, expected, seed, operations);
+        System.out.printf("IntHashSetCheck PASS seed=%d operations=%d%n", seed, operations);
+    }
+
+    private static void checkContents(IntHashSet set, Set<Integer> expected, long seed, int step) {
+        Set<Integer> iterated = new HashSet<>();
+        set.iterator().forEachRemaining((int value) ->
+                check(iterated.add(value), seed, step, "iterator repeats " + value));
+        check(iterated.equals(expected), seed, step, "iterator");
+
+        Set<Integer> visited = new HashSet<>();
+        set.forEach(visited::add);
+        check(visited.equals(expected), seed, step, "forEach");
+
+        int[] values = set.toArray();
+        check(values.length == expected.size(), seed, step, "toArray length");
+        for (int value : values) {
+            check(expected.contains(value), seed, step, "toArray " + value);
+        }
+        for (int value : expected) {
+            check(set.contains(value), seed, step, "contains " + value);
+        }
+    }
+
+    private static void check(boolean condition, long seed, int step, String what) {
+        if (!condition) {
+            throw new AssertionError("IntHashSetCheck failed: " + what + " at step " + step + ", seed " + seed);
+        }
+    }
+
+    private IntHashSetCheck() {
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Randomized check of {@link Journal}. Each round reopens the journal,
+ * replays it and compares the replay with the records committed so far.
+ * It then appends and commits a random batch and closes the journal.
+ * Finally it damages the file the way a crash or a bad disk could: it
+ * cuts the file at a random point, flips a random byte, or appends
+ * garbage. The next replay must return exactly the records before the
+ * damage and truncate the rest, and later appends must follow the last
+ * intact record. Usage:
+ *
+ *     java -cp out JournalCheck [seed] [rounds]
+ *
+ * Defaults to a random seed and 500 rounds. Works in a temporary directory
+ * that is deleted afterwards. A failure reports the seed, so it can be
+ * rerun.
+ */
+public final class JournalCheck {
+
+    // Length and checksum, then type and user ID
+    private static final int RECORD_OVERHEAD = 8 + 5;
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : new Random().nextLong();
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        Random random = new Random(seed);
+
+        Path directory = Files.createTempDirectory("journal-check");
+        Path file = directory.resolve("journal.log");
+        // Every record that should survive, and the file offset each ends at
+        List<Entry> expected = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        long damaged = 0;
+        try {
+            for (int round = 0; round < rounds; round++) {
+                Journal journal = new Journal(file);
+                List<Entry> replayed = new ArrayList<>();
+                long count = journal.replay((type, userId, payload) ->
+                        replayed.add(new Entry(type, userId, payload)));
+                check(count == replayed.size(), seed, round, "replay count");
+                check(replayed.equals(expected), seed, round, "replayed records");
+                long end = ends.isEmpty() ? 0 : ends.get(ends.size() - 1);
+                check(journal.size() == end, seed, round, "size after replay");
+                check(Files.size(file) == end, seed, round, "file truncated to the last intact record");
+
+                int commits = 1 + random.nextInt(4);
+                for (int c = 0; c < commits; c++) {
+                    int records = random.nextInt(20);
+                    for (int r = 0; r < records; r++) {
+                        Entry entry = randomEntry(random);
+                        journal.append(entry.type, entry.userId, entry.payload);
+                        expected.add(entry);
+                        end += RECORD_OVERHEAD + entry.payload.length;
+                        ends.add(end);
+                    }
+                    // The last batch is left for close to commit
+                    if (c < commits - 1) {
+                        journal.commit();
+                        check(journal.size() == end, seed, round, "size after commit");
+                    }
+                }
+                journal.close();
+                check(Files.size(file) == end, seed, round, "size after close");
+
+                if (end > 0 && random.nextInt(4) > 0) {
+                    damaged++;
+                    damage(file, end, random, expected, ends);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+        System.out.printf("JournalCheck PASS seed=%d rounds=%d damaged=%d records=%d%n",
+                seed, rounds, damaged, expected.size());
+    }
+
+    private static Entry randomEntry(Random random) {
+        byte type = (byte) (Journal.REGISTRATION + random.nextInt(3));
+        int userId = random.nextInt(1_000_000);
+        // Mostly command-sized, sometimes large enough to grow the buffer
+        int length = random.nextInt(50) == 0 ? random.nextInt(60 * 1024) : random.nextInt(100);
+        byte[] payload = new byte[length];
+        random.nextBytes(payload);
+        return new Entry(type, userId, payload);
+    }
+
+    // Damages the file and drops the records the damage reaches
+    private static void damage(Path file, long end, Random random, List<Entry> expected, List<Long> ends)
+            throws IOException {
+        try (RandomAccessFile output = new RandomAccessFile(file.toFile(), "rw")) {
+            switch (random.nextInt(3)) {
+                case 0: {
+                    // Cut within the last few records, as a crash mid-write would
+                    long keep = Math.max(0, end - 1 - random.nextInt((int) Math.min(end, 2_000)));
+                    output.setLength(keep);
+                    dropFrom(keep, expected, ends);
+                    break;
+                }
+                case 1: {
+                    long position = (long) (random.nextDouble() * end);
+                    output.seek(position);
+                    int value = output.read();
+                    output.seek(position);
+                    output.write(value ^ (1 + random.nextInt(255)));
+                    dropFrom(position, expected, ends);
+                    break;
+                }
+                default: {
+                    byte[] garbage = new byte[1 + random.nextInt(64)];
+                    random.nextBytes(garbage);
+                    output.seek(end);
+                    output.write(garbage);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Drops every record not entirely before the offset
+    private static void dropFrom(long offset, List<Entry> expected, List<Long> ends) {
+        while (!ends.isEmpty() && ends.get(ends.size() - 1) > offset) {
+            ends.remove(ends.size() - 1);
+            expected.remove(expected.size() - 1);
+        }
+    }
+
+    private static void check(boolean condition, long seed, int round, String what) {
+        if (!condition) {
+            throw new AssertionError("JournalCheck failed: " + what + " in round " + round + ", seed " + seed);
+        }
+    }
+
+    /**
+     * One record as appended or replayed.
+     */
+    private static final class Entry {
+        private final byte type;
+        private final int userId;
+        private final byte[] payload;
+
+        public Entry(byte type, int userId, byte[] payload) {
+            this.type = type;
+            this.userId = userId;
+            this.payload = payload;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry entry && entry.type == type && entry.userId == userId
+                    && Arrays.equals(entry.payload, payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * userId + Arrays.hashCode(payload);
+        }
+    }
+
+    private JournalCheck() {
+    }
+}
@@ -0,0 +1,520 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Drives a chat server with many simulated clients speaking the normal
+ * protocol and reports throughput and delivery latency.
+ *
+ * Scenarios:
+ * <ul>
+ *   <li>{@code fanin} - many small channels in which every client sends, so
+ *       traffic from all connections funnels into the model
+ *   <li>{@code large} - one channel holding every client, with a few
+ *       senders, to stress fan-out
+ *   <li>{@code churn} - half the clients message their channels while the
+ *       other half keep joining and leaving them; also reports JOIN-to-NAMES
+ *       latency
+ *   <li>{@code connect} - opens every connection as fast as possible and
+ *       reports connect-to-CONNECT latency
+ * </ul>
+ *
+ * Messages are sent open-loop on a fixed schedule and carry their scheduled
+ * send time, so latency includes any time the sender was held back and is
+ * not understated when the server stalls. They also carry a marker chosen
+ * for the run. A client only counts messages with this run's marker that
+ * were sent after its join completed, so lines replayed from a channel's
+ * history are not counted as deliveries. Usage:
+ *
+ *     java -cp out LoadGenerator [--option=value ...]
+ *
+ * Options: {@code scenario} (fanin), {@code host} (127.0.0.1), {@code port}
+ * (21212), {@code clients} (1000), {@code channelSize} (10, fanin only),
+ * {@code channels} (10, churn only), {@code senders} (10, large only),
+ * {@code rate} in messages per second (10000), {@code churnRate} in joins
+ * per second (1000), {@code warmup} and {@code duration} in seconds (2 and
+ * 10), and {@code embedded} (false) to start a server in this JVM, configured
+ * from the usual {@code chatserver.*} properties.
+ */
+public final class LoadGenerator {
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final long SETUP_TIMEOUT_SECONDS = 120;
+
+    private final Map<String, String> options;
+    private final String host;
+    private final int port;
+    private final List<Client> clients;
+    private final Histogram deliveryLatency;
+    private final Histogram joinLatency;
+    private final Histogram connectLatency;
+    private final LongAdder sent;
+    private final LongAdder delivered;
+    private final LongAdder errors;
+    // Tags this run's messages, telling them from older ones still in a
+    // channel's history
+    private final long marker;
+    private Selector selector;
+    private volatile CountDownLatch pending;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.host = option("host", "127.0.0.1");
+        this.port = Integer.parseInt(option("port", "21212"));
+        this.clients = new ArrayList<>();
+        this.deliveryLatency = new Histogram();
+        this.joinLatency = new Histogram();
+        this.connectLatency = new Histogram();
+        this.sent = new LongAdder();
+        this.delivered = new LongAdder();
+        this.errors = new LongAdder();
+        this.marker = new Random().nextLong() & Long.MAX_VALUE;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        PrintStream results = System.out;
+        ServerBackend backend = null;
+        if (Boolean.parseBoolean(options.getOrDefault("embedded", "false"))) {
+            // The server logs every line; keep that out of the results
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            backend = new ServerBackend(new ServerModel(), ServerConfig.fromSystemProperties());
+            new Thread(backend, "Connection acceptor").start();
+        }
+
+        LoadGenerator generator = new LoadGenerator(options);
+        if (backend != null) {
+            generator.awaitListening();
+        }
+        try {
+            generator.run(results);
+        } finally {
+            generator.close();
+            if (backend != null) {
+                backend.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+
+    private void run(PrintStream results) throws Exception {
+        String scenario = option("scenario", "fanin");
+        int clientCount = intOption("clients", 1_000);
+        selector = Selector.open();
+        Thread reader = new Thread(this::readLoop, "Load generator reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long connectStart = System.nanoTime();
+        connect(clientCount);
+        long connectElapsed = System.nanoTime() - connectStart;
+
+        if (scenario.equals("connect")) {
+            results.printf("scenario=connect clients=%d connections/s %.0f%n",
+                    clientCount, clientCount * 1e9 / connectElapsed);
+            report(results, "connect", connectLatency);
+            return;
+        }
+
+        List<Client> senders = new ArrayList<>();
+        List<Client> churners = new ArrayList<>();
+        switch (scenario) {
+            case "fanin": {
+                int channelSize = intOption("channelSize", 10);
+                for (int i = 0; i < clients.size(); i++) {
+                    Client client = clients.get(i);
+                    client.channel = "fanin" + i / channelSize;
+                    senders.add(client);
+                }
+                break;
+            }
+            case "large": {
+                int senderCount = intOption("senders", 10);
+                for (int i = 0; i < clients.size(); i++) {
+                    clients.get(i).channel = "large";
+                    if (i < senderCount) {
+                        senders.add(clients.get(i));
+                    }
+                }
+                break;
+            }
+            case "churn": {
+                int channels = intOption("channels", 10);
+                for (int i = 0; i < clients.size(); i++) {
+                    Client client = clients.get(i);
+                    client.channel = "churn" + i % channels;
+                    // The first client of each channel owns it and stays put
+                    if (i < channels || i % 2 == 0) {
+                        senders.add(client);
+                    } else {
+                        churners.add(client);
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+        setUpChannels(churners);
+
+        double rate = Double.parseDouble(option("rate", "10000"));
+        double churnRate = churners.isEmpty() ? 0 : Double.parseDouble(option("churnRate", "1000"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 2));
+        long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 10));
+
+        Thread churner = null;
+        if (churnRate > 0) {
+            churner = new Thread(() -> churn(churners, churnRate, warmupNanos + durationNanos),
+                    "Load generator churn");
+            churner.setDaemon(true);
+            churner.start();
+        }
+
+        long start = System.nanoTime();
+        long measureStart = start + warmupNanos;
+        long end = measureStart + durationNanos;
+        long interval = (long) (1e9 / rate);
+        boolean measuring = false;
+        long sentBefore = 0;
+        long deliveredBefore = 0;
+        for (long i = 0; ; i++) {
+            long scheduled = start + i * interval;
+            if (scheduled >= end) {
+                break;
+            }
+            if (!measuring && scheduled >= measureStart) {
+                measuring = true;
+                deliveryLatency.reset();
+                joinLatency.reset();
+                sentBefore = sent.sum();
+                deliveredBefore = delivered.sum();
+            }
+            waitUntil(scheduled);
+            Client client = senders.get((int) (i % senders.size()));
+            client.send("MESG " + client.channel + " :" + marker + " " + scheduled + "\n");
+            sent.increment();
+        }
+        long sentDuring = sent.sum() - sentBefore;
+        long deliveredDuring = delivered.sum() - deliveredBefore;
+        if (churner != null) {
+            churner.join();
+        }
+
+        double seconds = durationNanos / 1e9;
+        results.printf("scenario=%s clients=%d senders=%d  sent/s %.0f  delivered/s %.0f  errors %d%n",
+                scenario, clientCount, senders.size(),
+                sentDuring / seconds, deliveredDuring / seconds, errors.sum());
+        report(results, "delivery", deliveryLatency);
+        if (!churners.isEmpty()) {
+            report(results, "join", joinLatency);
+        }
+    }
+
+    private static void report(PrintStream results, String name, Histogram histogram) {
+        results.printf("  %-8s latency_us  count %d  p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n",
+                name, histogram.getCount(),
+                histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(99) / 1e3,
+                histogram.getValueAtPercentile(99.9) / 1e3, histogram.getMax() / 1e3);
+    }
+
+    private void connect(int count) throws Exception {
+        pending = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            Client client = new Client(clients.size());
+            client.connectStarted = System.nanoTime();
+            client.socket = SocketChannel.open(new InetSocketAddress(host, port));
+            client.socket.configureBlocking(false);
+            clients.add(client);
+            synchronized (this) {
+                selector.wakeup();
+                client.socket.register(selector, SelectionKey.OP_READ, client);
+            }
+        }
+        await("CONNECT");
+    }
+
+    /**
+     * Creates each client's channel from its first member, then has every
+     * other member join it, except churners, which start outside.
+     */
+    private void setUpChannels(List<Client> churners) throws Exception {
+        Set<String> created = new HashSet<>();
+        List<Client> owners = new ArrayList<>();
+        for (Client client : clients) {
+            if (client.channel != null && created.add(client.channel)) {
+                owners.add(client);
+            }
+        }
+        pending = new CountDownLatch(owners.size());
+        for (Client owner : owners) {
+            owner.inChannel = true;
+            owner.send("CREATE " + owner.channel + " 0\n");
+        }
+        await("CREATE");
+
+        Set<Client> outside = new HashSet<>(churners);
+        List<Client> joiners = new ArrayList<>();
+        for (Client client : clients) {
+            if (client.channel != null && !client.inChannel && !outside.contains(client)) {
+                joiners.add(client);
+            }
+        }
+        pending = new CountDownLatch(joiners.size());
+        for (Client joiner : joiners) {
+            joiner.inChannel = true;
+            joiner.send("JOIN " + joiner.channel + "\n");
+        }
+        await("JOIN");
+        pending = null;
+    }
+
+    private void awaitListening() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress(host, port))) {
+                probe.shutdownOutput();
+                return;
+            } catch (IOException iox) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start listening");
+    }
+
+    private void await(String step) throws InterruptedException {
+        if (!pending.await(SETUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timed out waiting for " + step + " responses");
+        }
+    }
+
+    /**
+     * Moves the churners in and out of their channels at the given total
+     * rate of joins, until the time is up.
+     */
+    private void churn(List<Client> churners, double joinsPerSecond, long runNanos) {
+        long start = System.nanoTime();
+        // Each cycle is a JOIN and a LEAVE
+        long interval = (long) (1e9 / joinsPerSecond / 2);
+        try {
+            for (long i = 0; ; i++) {
+                long scheduled = start + i * interval;
+                if (scheduled - start >= runNanos) {
+                    return;
+                }
+                waitUntil(scheduled);
+                Client client = churners.get((int) (i % churners.size()));
+                if (client.joinSentAt != 0) {
+                    // Still waiting for NAMES; skip its turn
+                    continue;
+                }
+                if (client.inChannel) {
+                    client.inChannel = false;
+                    client.send("LEAVE " + client.channel + "\n");
+                } else {
+                    client.joinSentAt = scheduled;
+                    client.send("JOIN " + client.channel + "\n");
+                }
+            }
+        } catch (IOException iox) {
+            iox.printStackTrace();
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > 100_000) {
+                LockSupport.parkNanos(remaining - 50_000);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                // Lets connect() register channels between selects
+                synchronized (this) {
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (client.reader.read(client.socket, client) < 0) {
+                            key.cancel();
+                        }
+                    } catch (IOException iox) {
+                        key.cancel();
+                        errors.increment();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException x) {
+            // Closed at the end of the run
+        }
+    }
+
+    private void close() throws IOException {
+        if (selector != null) {
+            selector.close();
+        }
+        for (Client client : clients) {
+            if (client.socket != null) {
+                client.socket.close();
+            }
+        }
+    }
+
+
+    /**
+     * One simulated user. Its lines are handled on the reader thread.
+     */
+    private final class Client implements LineReader.LineHandler {
+        private final int index;
+        private final LineReader reader;
+        private SocketChannel socket;
+        private String channel;
+        private long connectStarted;
+        private volatile boolean inChannel;
+        // Scheduled time of an outstanding JOIN, or 0
+        private volatile long joinSentAt;
+        // When the client last got into its channel; messages sent before
+        // then only reach it as history
+        private long joinedAt;
+
+        public Client(int index) {
+            this.index = index;
+            this.reader = new LineReader(READ_BUFFER_SIZE, MAX_LINE_LENGTH);
+        }
+
+        public void send(String line) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            synchronized (this) {
+                while (buffer.hasRemaining()) {
+                    if (socket.write(buffer) == 0) {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void lineReceived(byte[] line, int offset, int length) {
+            long now = System.nanoTime();
+            int end = offset + length;
+            int verbStart = indexOf(line, ' ', offset, end) + 1;
+            if (verbStart == 0) {
+                return;
+            }
+            int verbEnd = indexOf(line, ' ', verbStart, end);
+            if (verbEnd < 0) {
+                verbEnd = end;
+            }
+
+            if (is(line, verbStart, verbEnd, "MESG")) {
+                int payload = indexOf(line, ':', verbEnd, end) + 1;
+                int separator = payload > 0 ? indexOf(line, ' ', payload, end) : -1;
+                if (separator < 0 || parseLong(line, payload, separator) != marker) {
+                    return;
+                }
+                long scheduled = parseLong(line, separator + 1, end);
+                if (scheduled >= joinedAt) {
+                    delivered.increment();
+                    deliveryLatency.record(now - scheduled);
+                }
+            } else if (is(line, verbStart, verbEnd, "NAMES")) {
+                joinedAt = now;
+                long sentAt = joinSentAt;
+                if (sentAt != 0) {
+                    joinLatency.record(now - sentAt);
+                    inChannel = true;
+                    joinSentAt = 0;
+                } else {
+                    countDown();
+                }
+            } else if (is(line, verbStart, verbEnd, "CONNECT")) {
+                connectLatency.record(now - connectStarted);
+                countDown();
+            } else if (is(line, verbStart, verbEnd, "CREATE")) {
+                joinedAt = now;
+                countDown();
+            } else if (is(line, verbStart, verbEnd, "ERROR")) {
+                errors.increment();
+            }
+        }
+
+        private void countDown() {
+            CountDownLatch latch = pending;
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "client " + index;
+        }
+    }
+
+    private static int indexOf(byte[] line, char character, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == character) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean is(byte[] line, int start, int end, String verb) {
+        if (end - start != verb.length()) {
+            return false;
+        }
+        for (int i = 0; i < verb.length(); i++) {
+            if (line[start + i] != verb.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLong(byte[] line, int start, int end) {
+        boolean negative = start < end && line[start] == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (line[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * End-to-end throughput and latency through a real {@link ServerBackend}
+ * over loopback sockets.
+ *
+ * All clients join one channel and the first one sends messages to it. The
+ * latency phase sends one message at a time and times the echo back to the
+ * sender; the throughput phase keeps a window of messages in flight and
+ * counts deliveries to every member. Usage:
+ *
+ *     java -cp out LoopbackBenchmark [BLOCKING|SELECTOR] [clients] [messages]
+ *
+ * Other server options are taken from the usual {@code chatserver.*}
+ * properties.
+ */
+public final class LoopbackBenchmark {
+
+    private static final int PORT = 21212;
+    private static final String CHANNEL = "bench";
+    private static final int WINDOW = 256;
+    private static final int LATENCY_SAMPLES = 2_000;
+    private static final long TIMEOUT_MS = 60_000;
+
+    public static void main(String[] args) throws Exception {
+        ServerConfig.Transport transport = args.length > 0
+                ? ServerConfig.Transport.valueOf(args[0].toUpperCase())
+                : ServerConfig.Transport.SELECTOR;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+
+        // The server logs every line; keep that out of the results
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServerConfig config = ServerConfig.fromSystemProperties().setTransport(transport);
+        ServerBackend backend = new ServerBackend(new ServerModel(), config);
+        new Thread(backend, "Connection acceptor").start();
+        awaitListening();
+
+        Readers readers = null;
+        try {
+            List<SocketChannel> channels = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                channels.add(SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT)));
+            }
+            readers = new Readers(channels);
+            readers.start();
+
+            // Join one at a time so every member knows how many lines to
+            // expect: CONNECT, then its own JOIN and NAMES, then a JOIN for
+            // each later member (the owner gets CREATE instead)
+            readers.awaitCount(0, 1);
+            send(channels.get(0), "CREATE " + CHANNEL + " 0\n");
+            readers.awaitCount(0, 2);
+            for (int k = 1; k < clients; k++) {
+                readers.awaitCount(k, 1);
+                send(channels.get(k), "JOIN " + CHANNEL + "\n");
+                readers.awaitCount(k, 3);
+            }
+            readers.awaitCount(0, 2 + (clients - 1));
+            for (int k = 1; k < clients; k++) {
+                readers.awaitCount(k, 3 + (clients - 1 - k));
+            }
+
+            SocketChannel sender = channels.get(0);
+            String line = "MESG " + CHANNEL + " :the quick brown fox jumps over the lazy dog\n";
+
+            long[] latencies = new long[LATENCY_SAMPLES];
+            for (int i = 0; i < LATENCY_SAMPLES; i++) {
+                long echoes = readers.count(0);
+                long begin = System.nanoTime();
+                send(sender, line);
+                readers.awaitCount(0, echoes + 1);
+                latencies[i] = System.nanoTime() - begin;
+            }
+            Arrays.sort(latencies);
+
+            long deliveredBefore = readers.total();
+            long echoesBefore = readers.count(0);
+            long begin = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                readers.awaitCount(0, echoesBefore + i - WINDOW);
+                send(sender, line);
+            }
+            readers.awaitTotal(deliveredBefore + (long) messages * clients);
+            long elapsed = System.nanoTime() - begin;
+
+            results.printf(
+                    "loopback/%s/clients=%d  messages/s %10.0f  deliveries/s %12.0f  "
+                            + "rtt_us p50 %8.1f  p99 %8.1f  p999 %8.1f%n",
+                    transport, clients,
+                    messages * 1e9 / elapsed, (double) messages * clients * 1e9 / elapsed,
+                    latencies[LATENCY_SAMPLES / 2] / 1e3,
+                    latencies[LATENCY_SAMPLES * 99 / 100] / 1e3,
+                    latencies[LATENCY_SAMPLES * 999 / 1000] / 1e3
+            );
+        } finally {
+            if (readers != null) {
+                readers.close();
+            }
+            backend.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void send(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void awaitListening() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT))) {
+                probe.shutdownOutput();
+                return;
+            } catch (IOException iox) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start listening");
+    }
+
+
+    /**
+     * Drains every client's socket on one thread, counting the lines each
+     * receives.
+     */
+    private static final class Readers extends Thread {
+        private final Selector selector;
+        private final long[] counts;
+        private long total;
+
+        public Readers(List<SocketChannel> channels) throws IOException {
+            super("Benchmark readers");
+            setDaemon(true);
+            selector = Selector.open();
+            counts = new long[channels.size()];
+            for (int i = 0; i < channels.size(); i++) {
+                SocketChannel channel = channels.get(i);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, i);
+            }
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        buffer.clear();
+                        int count = ((SocketChannel) key.channel()).read(buffer);
+                        if (count < 0) {
+                            key.cancel();
+                            continue;
+                        }
+                        int lines = 0;
+                        for (int i = 0; i < count; i++) {
+                            if (buffer.get(i) == '\n') {
+                                lines++;
+                            }
+                        }
+                        if (lines > 0) {
+                            synchronized (this) {
+                                counts[(Integer) key.attachment()] += lines;
+                                total += lines;
+                                notifyAll();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | java.nio.channels.ClosedSelectorException x) {
+                // Closed at the end of the run
+            }
+        }
+
+        public synchronized long count(int client) {
+            return counts[client];
+        }
+
+        public synchronized long total() {
+            return total;
+        }
+
+        public synchronized void awaitCount(int client, long count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (counts[client] < count) {
+                waitUntil(deadline);
+            }
+        }
+
+        public synchronized void awaitTotal(long count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (total < count) {
+                waitUntil(deadline);
+            }
+        }
+
+        private void waitUntil(long deadline) throws InterruptedException {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IllegalStateException("Timed out waiting for responses");
+            }
+            wait(remaining);
+        }
+
+        public void close() throws IOException {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    private LoopbackBenchmark() {
+    }
+}
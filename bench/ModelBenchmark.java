@@ -0,0 +1,80 @@
+/**
+ * Cost of each model operation, including building its broadcast, with one
+ * channel of varying size. Usage:
+ *
+ *     java -cp out ModelBenchmark [members ...]
+ *
+ * Defaults to channels of 10, 1000 and 10000 members.
+ */
+public final class ModelBenchmark {
+
+    private static final String CHANNEL = "bench";
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0
+                ? java.util.Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {10, 1_000, 10_000};
+
+        Bench.header("Model operations");
+        for (int members : sizes) {
+            ServerModel model = populate(members);
+            String suffix = "/members=" + members;
+            String sender = model.getNickname(1);
+
+            Bench.measure("model/mesg" + suffix, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    Bench.consume(new MessageCommand(1, sender, CHANNEL, "hello everyone")
+                            .updateServerModel(model));
+                }
+            });
+
+            // An outsider joining and leaving again keeps the channel size steady
+            int outsider = members;
+            String outsiderNick = model.getNickname(outsider);
+            Bench.measure("model/join+leave" + suffix, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    Bench.consume(new JoinCommand(outsider, outsiderNick, CHANNEL).updateServerModel(model));
+                    Bench.consume(new LeaveCommand(outsider, outsiderNick, CHANNEL).updateServerModel(model));
+                }
+            });
+
+            Bench.measure("model/nick" + suffix, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    String current = model.getNickname(1);
+                    String next = current.equals("renamedA") ? "renamedB" : "renamedA";
+                    Bench.consume(new NicknameCommand(1, current, next).updateServerModel(model));
+                }
+            });
+
+            int[] nextId = {members + 1};
+            Bench.measure("model/connect+join+quit" + suffix, operations -> {
+                for (int i = 0; i < operations; i++) {
+                    int userId = nextId[0]++;
+                    Bench.consume(model.registerUser(userId));
+                    Bench.consume(new JoinCommand(userId, model.getNickname(userId), CHANNEL)
+                            .updateServerModel(model));
+                    Bench.consume(model.deregisterUser(userId));
+                }
+            });
+        }
+    }
+
+    /**
+     * Registers members + 1 users and puts all but the last in one public
+     * channel owned by user 0.
+     */
+    private static ServerModel populate(int members) {
+        ServerModel model = new ServerModel();
+        for (int userId = 0; userId <= members; userId++) {
+            model.registerUser(userId);
+        }
+        new CreateCommand(0, model.getNickname(0), CHANNEL, false).updateServerModel(model);
+        for (int userId = 1; userId < members; userId++) {
+            new JoinCommand(userId, model.getNickname(userId), CHANNEL).updateServerModel(model);
+        }
+        return model;
+    }
+
+    private ModelBenchmark() {
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.*;
+
+
+/**
+ * Randomized check of {@link PersistentMap} against a {@link HashMap}: runs
+ * random puts, removes and lookups, compares the two after every step, and
+ * makes sure older versions of the map stay as they were. Keys share hash
+ * codes often, both as strings built from "Aa" and "BB" and as keys with
+ * hash codes from a small range, so full collisions and deep tries are
+ * exercised. Usage:
+ *
+ *     java -cp out PersistentMapCheck [seed] [operations]
+ *
+ * Defaults to a random seed and 1,000,000 operations. A failure reports
+ * the seed, so it can be rerun.
+ */
+public final class PersistentMapCheck {
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : new Random().nextLong();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        Random random = new Random(seed);
+        Object[] keys = keys(random);
+
+        PersistentMap<Object, Integer> map = PersistentMap.empty();
+        Map<Object, Integer> expected = new HashMap<>();
+        PersistentMap<Object, Integer> old = map;
+        Map<Object, Integer> oldExpected = new HashMap<>();
+        for (int i = 0; i < operations; i++) {
+            // Vary how many keys are in play so the map keeps growing and
+            // shrinking
+            int range = Math.min(keys.length, 1 << (2 + (i / 10_000) % 12));
+            Object key = keys[random.nextInt(range)];
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                map = map.put(key, i);
+                expected.put(key, i);
+            } else if (operation < 9) {
+                map = map.remove(key);
+                expected.remove(key);
+            }
+            check(Objects.equals(map.get(key), expected.get(key)), seed, i, "get " + key);
+            check(map.containsKey(key) == expected.containsKey(key), seed, i, "containsKey " + key);
+            check(map.size() == expected.size(), seed, i, "size");
+
+            if (i % 1_000 == 0) {
+                checkContents(map, expected, seed, i);
+                // Updates since the old version was taken must not show in it
+                checkContents(old, oldExpected, seed, i);
+                old = map;
+                oldExpected = new HashMap<>(expected);
+
+                // A builder sized too small must grow
+                PersistentMap.Builder<Object, Integer> builder =
+                        PersistentMap.builder(random.nextInt(expected.size() + 1));
+                for (Map.Entry<Object, Integer> entry : expected.entrySet()) {
+                    builder.put(entry.getKey(), entry.getValue());
+                }
+                PersistentMap<Object, Integer> built = builder.build();
+                checkContents(built, expected, seed, i);
+                // A built map must also update like one made by puts
+                Object extra = keys[random.nextInt(range)];
+                Map<Object, Integer> updated = new HashMap<>(expected);
+                if (random.nextBoolean()) {
+                    built = built.put(extra, -1);
+                    updated.put(extra, -1);
+                } else {
+                    built = built.remove(extra);
+                    updated.remove(extra);
+                }
+                checkContents(built, updated, seed, i);
+            }
+        }
+        checkContents(map, expected, seed, operations);
+        System.out.printf("PersistentMapCheck PASS seed=%d operations=%d%n", seed, operations);
+    }
+
+    // A shuffled mix of plain strings, strings that all share one hash code,
+    // and keys whose hash codes fall in a small range
+    private static Object[] keys(Random random) {
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            keys.add("key" + i);
+        }
+        // Every string of four "Aa" or "BB" blocks has the same hash code
+        for (int i = 0; i < 16; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int bit = 0; bit < 4; bit++) {
+                key.append((i >> bit & 1) == 0 ? "Aa" : "BB");
+            }
+            keys.add(key.toString());
+        }
+        for (int i = 0; i < 2_000; i++) {
+            keys.add(new Key(i, random.nextInt(256) << random.nextInt(24)));
+        }
+        Collections.shuffle(keys, random);
+        return keys.toArray();
+    }
+
+    private static void checkContents(
+            PersistentMap<Object, Integer> map, Map<Object, Integer> expected, long seed, int step
+    ) {
+        check(map.size() == expected.size(), seed, step, "size");
+        check(map.isEmpty() == expected.isEmpty(), seed, step, "isEmpty");
+        Map<Object, Integer> iterated = new HashMap<>();
+        for (Map.Entry<Object, Integer> entry : map) {
+            check(iterated.put(entry.getKey(), entry.getValue()) == null, seed, step,
+                    "iterator repeats " + entry.getKey());
+        }
+        check(iterated.equals(expected), seed, step, "iterator");
+        check(new HashSet<>(map.keys()).equals(expected.keySet()), seed, step, "keys");
+        check(map.keys().size() == expected.size(), seed, step, "keys size");
+        List<Integer> values = new ArrayList<>(map.values());
+        List<Integer> expectedValues = new ArrayList<>(expected.values());
+        Collections.sort(values);
+        Collections.sort(expectedValues);
+        check(values.equals(expectedValues), seed, step, "values");
+        for (Map.Entry<Object, Integer> entry : expected.entrySet()) {
+            check(entry.getValue().equals(map.get(entry.getKey())), seed, step, "get " + entry.getKey());
+            check(map.keys().contains(entry.getKey()), seed, step, "keys contains " + entry.getKey());
+        }
+    }
+
+    private static void check(boolean condition, long seed, int step, String what) {
+        if (!condition) {
+            throw new AssertionError("PersistentMapCheck failed: " + what + " at step " + step + ", seed " + seed);
+        }
+    }
+
+    /**
+     * A key with a chosen hash code, equal only to keys with the same ID.
+     */
+    private static final class Key {
+        private final int id;
+        private final int hash;
+
+        public Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key key && key.id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "Key" + id + "#" + Integer.toHexString(hash);
+        }
+    }
+
+    private PersistentMapCheck() {
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Throughput of the model thread's task hand-off: several producer threads
+ * put tasks while one consumer drains them in batches, the way connection
+ * threads and the model thread use the queue.
+ *
+ * Compares the {@code LINKED} queue against the {@code RING} queue under each
+ * wait strategy. Usage:
+ *
+ *     java -cp out TaskQueueBenchmark [producers] [tasksPerProducer]
+ */
+public final class TaskQueueBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final int BATCH_SIZE = 256;
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perProducer = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        run("LINKED", producers, perProducer, new ServerConfig()
+                .setTaskQueue(ServerConfig.TaskQueueType.LINKED));
+        for (ServerConfig.WaitStrategy strategy : ServerConfig.WaitStrategy.values()) {
+            run("RING/" + strategy, producers, perProducer, new ServerConfig()
+                    .setTaskQueue(ServerConfig.TaskQueueType.RING)
+                    .setWaitStrategy(strategy));
+        }
+    }
+
+    private static void run(String name, int producers, int perProducer, ServerConfig config)
+            throws InterruptedException {
+        double[] rates = new double[MEASURED_ROUNDS];
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            double rate = round(TaskQueue.create(config), producers, perProducer);
+            if (round >= WARMUP_ROUNDS) {
+                rates[round - WARMUP_ROUNDS] = rate;
+            }
+        }
+        Arrays.sort(rates);
+        System.out.printf("%-16s producers=%d  median=%8.2f Mtasks/s  min=%8.2f  max=%8.2f%n",
+                name, producers, rates[rates.length / 2], rates[0], rates[rates.length - 1]);
+    }
+
+    /**
+     * Returns millions of tasks moved per second.
+     */
+    private static double round(TaskQueue<Object> queue, int producers, int perProducer)
+            throws InterruptedException {
+        Object task = new Object();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ix) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    queue.put(task);
+                }
+            });
+            producer.start();
+            threads.add(producer);
+        }
+
+        long total = (long) producers * perProducer;
+        List<Object> batch = new ArrayList<>(BATCH_SIZE);
+        long begin = System.nanoTime();
+        start.countDown();
+        for (long received = 0; received < total; ) {
+            batch.add(queue.take());
+            queue.drainTo(batch, BATCH_SIZE - 1);
+            received += batch.size();
+            batch.clear();
+        }
+        long elapsed = System.nanoTime() - begin;
+        for (Thread producer : threads) {
+            producer.join();
+        }
+        return total * 1e3 / elapsed;
+    }
+
+    private TaskQueueBenchmark() {
+    }
+}
@@ -0,0 +1,15 @@
+#!/bin/sh
+# Compiles the server and the benchmarks and runs the randomized checks of
+# the data structures, each against a simple reference. Extra arguments are
+# passed to every check, e.g. bench/check.sh <seed> to rerun a failure.
+set -e
+cd "$(dirname "$0")/.."
+
+out=bench/out
+rm -rf "$out"
+mkdir -p "$out"
+javac -d "$out" *.java bench/*.java
+
+java -cp "$out" IntHashSetCheck "$@"
+java -cp "$out" PersistentMapCheck "$@"
+java -cp "$out" JournalCheck "$@" 2>/dev/null
@@ -0,0 +1,32 @@
+#!/bin/sh
+# Compiles the server and the benchmarks, runs every single-JVM suite and
+# saves the output as bench/results/<commit>.txt, so runs from different
+# commits can be compared with diff. Extra arguments are passed to java,
+# e.g. bench/run.sh -Dbench.filter=model/
+set -e
+cd "$(dirname "$0")/.."
+
+commit=$(git rev-parse --short HEAD 2>/dev/null || echo unknown)
+if [ -n "$(git status --porcelain --untracked-files=no 2>/dev/null)" ]; then
+    commit="$commit-dirty"
+fi
+
+out=bench/out
+rm -rf "$out"
+mkdir -p "$out" bench/results
+javac -d "$out" *.java bench/*.java
+
+results="bench/results/$commit.txt"
+{
+    echo "commit $commit"
+    echo "date $(date -u +%Y-%m-%dT%H:%M:%SZ)"
+    echo "java $(java -version 2>&1 | head -n 1)"
+    echo "cpus $(getconf _NPROCESSORS_ONLN 2>/dev/null || echo unknown)"
+    java -cp "$out" "$@" CommandParsingBenchmark
+    java -cp "$out" "$@" ModelBenchmark
+    java -cp "$out" "$@" BroadcastBenchmark
+    echo "# Loopback"
+    java -cp "$out" "$@" LoopbackBenchmark BLOCKING 2>/dev/null
+    java -cp "$out" "$@" LoopbackBenchmark SELECTOR 2>/dev/null
+} | tee "$results"
+echo "Saved $results"